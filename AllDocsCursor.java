@@ -0,0 +1,55 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+
+/**
+ *   A cursor over every docID below a bound, used to negate a query that
+ *   has nothing to include, e.g. "not a".
+ */
+public class AllDocsCursor extends PostingsCursor {
+
+    /** The number of docIDs. */
+    final int numDocs;
+
+    /** The current docID. */
+    int docID = -1;
+
+
+    /** Creates a cursor over the docIDs 0 up to numDocs - 1. */
+    public AllDocsCursor( int numDocs ) {
+        this.numDocs = numDocs;
+    }
+
+
+    public int docID() {
+        return docID;
+    }
+
+    public int nextDoc() {
+        return docID == NO_MORE_DOCS ? docID : advance( docID + 1 );
+    }
+
+    public int advance( int target ) {
+        if ( docID < target ) {
+            docID = target < numDocs ? target : NO_MORE_DOCS;
+        }
+        return docID;
+    }
+
+    /** Every document counts once. */
+    public int tf() {
+        return 1;
+    }
+
+    public int position( int j ) {
+        throw new UnsupportedOperationException( "All documents have no positions" );
+    }
+
+    public int size() {
+        return numDocs;
+    }
+}
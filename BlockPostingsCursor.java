@@ -0,0 +1,239 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+
+/**
+ *   A cursor over a postings list in the binary postings format of
+ *   PersistentHashedIndex, read directly from its encoded bytes.
+ *
+ *   The list is stored in blocks of SKIP_INTERVAL postings, preceded by a
+ *   skip table with the last docID and the byte lengths of every block.
+ *   The cursor reads the skip table when it is created, and then decodes
+ *   only the blocks it actually lands in; advance() jumps over every block
+ *   whose last docID is smaller than the target without decoding it.
+ *
+ *   The positions are only read when position() is first called, and
+ *   then only those of the current posting are decoded.
+ */
+public class BlockPostingsCursor extends PostingsCursor {
+
+    /** The encoded postings list. */
+    final ByteBuffer buf;
+
+    /** Supplies the encoded positions of the list. */
+    final Supplier<ByteBuffer> positionsSource;
+
+    /** The encoded positions, or null if they have not been read yet. */
+    ByteBuffer positionsBuf = null;
+
+    /** Number of postings in the list. */
+    final int size;
+
+    /** Upper bound of tf / document length over the postings. */
+    final double maxWeight;
+
+    /** The last docID of each block. */
+    final int[] blockLastDocIDs;
+
+    /** The position in <code>buf</code> where each block starts. */
+    final int[] blockStarts;
+
+    /** The offset in the encoded positions where the positions of each block start. */
+    final int[] blockPositionsStarts;
+
+    /** The currently decoded block, or -1. */
+    int block = -1;
+
+    /** The postings of the decoded block. */
+    int[] docIDs = new int[PersistentHashedIndex.SKIP_INTERVAL];
+    int[] tfs = new int[PersistentHashedIndex.SKIP_INTERVAL];
+
+    /** The decoded positions of posting <code>positionsIndex - 1</code> of the decoded block. */
+    int[] positions = new int[16];
+
+    /**
+     *  The index in the decoded block of the posting after the one whose
+     *  positions were decoded last, and where its positions start.
+     */
+    int positionsIndex = 0, positionsNext = 0;
+
+    /** Number of postings in the decoded block. */
+    int n = 0;
+
+    /** Index of the current posting in the decoded block. */
+    int i = -1;
+
+    /** The current docID. */
+    int docID = -1;
+
+
+    /**
+     *  Creates a cursor over the encoded list starting at the current
+     *  position of the buffer.
+     */
+    public BlockPostingsCursor( ByteBuffer buf, Supplier<ByteBuffer> positionsSource ) {
+        this( buf, positionsSource, Double.POSITIVE_INFINITY );
+    }
+
+    /**
+     *  Creates a cursor over an encoded list whose ratios of tf to document
+     *  length are at most maxWeight.
+     */
+    public BlockPostingsCursor( ByteBuffer buf, Supplier<ByteBuffer> positionsSource, double maxWeight ) {
+        this.buf = buf;
+        this.maxWeight = maxWeight;
+        this.positionsSource = positionsSource;
+        size = PersistentHashedIndex.readVB( buf );
+        int blocks = PersistentHashedIndex.blocks( size );
+        blockLastDocIDs = new int[blocks];
+        int[] lengths = new int[blocks];
+        blockPositionsStarts = new int[blocks];
+        int last = 0;
+        int positionsStart = 0;
+        for ( int b=0; b<blocks; b++ ) {
+            last += PersistentHashedIndex.readVB( buf );
+            blockLastDocIDs[b] = last;
+            lengths[b] = PersistentHashedIndex.readVB( buf );
+            blockPositionsStarts[b] = positionsStart;
+            positionsStart += PersistentHashedIndex.readVB( buf );
+        }
+        blockStarts = new int[blocks];
+        int start = buf.position();
+        for ( int b=0; b<blocks; b++ ) {
+            blockStarts[b] = start;
+            start += lengths[b];
+        }
+    }
+
+
+    /** Decodes block b. */
+    void decodeBlock( int b ) {
+        block = b;
+        buf.position( blockStarts[b] );
+        n = Math.min( PersistentHashedIndex.SKIP_INTERVAL, size - b * PersistentHashedIndex.SKIP_INTERVAL );
+        int doc = b == 0 ? 0 : blockLastDocIDs[b-1];
+        for ( int k=0; k<n; k++ ) {
+            doc += PersistentHashedIndex.readVB( buf );
+            docIDs[k] = doc;
+            tfs[k] = PersistentHashedIndex.readVB( buf );
+        }
+        i = 0;
+        positionsIndex = 0;
+        positionsNext = -1;
+    }
+
+
+    /**
+     *  Decodes the positions of the current posting. The positions of the
+     *  earlier postings in the block are skipped by counting the last bytes
+     *  of their variable-byte codes, continuing from the last posting whose
+     *  positions were decoded when possible.
+     */
+    void decodePositions() {
+        if ( positionsBuf == null ) {
+            positionsBuf = positionsSource.get();
+        }
+        int k = positionsIndex, p = positionsNext;
+        if ( p < 0 || k > i ) {
+            k = 0;
+            p = positionsBuf.position() + blockPositionsStarts[block];
+        }
+        int skip = 0;
+        for ( ; k<i; k++ ) {
+            skip += tfs[k];
+        }
+        while ( skip > 0 ) {
+            if ( positionsBuf.get( p++ ) >= 0 ) {
+                skip--;
+            }
+        }
+        int tf = tfs[i];
+        if ( tf > positions.length ) {
+            positions = Arrays.copyOf( positions, Math.max( tf, 2 * positions.length ));
+        }
+        int pos = 0;
+        for ( int j=0; j<tf; j++ ) {
+            int b = positionsBuf.get( p++ );
+            int gap = b & 0x7F;
+            for ( int shift = 7; b < 0; shift += 7 ) {
+                b = positionsBuf.get( p++ );
+                gap |= ( b & 0x7F ) << shift;
+            }
+            pos += gap;
+            positions[j] = pos;
+        }
+        positionsIndex = i + 1;
+        positionsNext = p;
+    }
+
+
+    public int docID() {
+        return docID;
+    }
+
+    public int nextDoc() {
+        if ( docID == NO_MORE_DOCS ) {
+            return docID;
+        }
+        if ( block >= 0 && i + 1 < n ) {
+            i++;
+        } else if ( block + 1 < blockStarts.length ) {
+            decodeBlock( block + 1 );
+        } else {
+            return docID = NO_MORE_DOCS;
+        }
+        return docID = docIDs[i];
+    }
+
+    public int advance( int target ) {
+        if ( docID >= target ) {
+            return docID;
+        }
+        if ( blockStarts.length == 0 ) {
+            return docID = NO_MORE_DOCS;
+        }
+        // Find the first block whose last docID is at least the target
+        int b = Math.max( block, 0 );
+        if ( blockLastDocIDs[b] < target ) {
+            int k = Arrays.binarySearch( blockLastDocIDs, b + 1, blockLastDocIDs.length, target );
+            b = k >= 0 ? k : -k - 1;
+            if ( b == blockLastDocIDs.length ) {
+                return docID = NO_MORE_DOCS;
+            }
+        }
+        if ( b != block ) {
+            decodeBlock( b );
+        }
+        while ( docIDs[i] < target ) {
+            i++;
+        }
+        return docID = docIDs[i];
+    }
+
+    public int tf() {
+        return tfs[i];
+    }
+
+    public int position( int j ) {
+        if ( positionsIndex != i + 1 || positionsNext < 0 ) {
+            decodePositions();
+        }
+        return positions[j];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double maxWeight() {
+        return maxWeight;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ *   A boolean query, parsed from text such as
+ *
+ *      (zombie or vampire) and not "attack of the"
+ *
+ *   The operators are AND, OR and NOT in any case, and parentheses group.
+ *   Terms next to each other without an operator are joined by AND, which
+ *   binds tighter than OR, and NOT binds tightest. A phrase in double quotes
+ *   matches its terms next to each other, in order; a quoted "and" or "or"
+ *   is a term.
+ *
+ *   The query compiles to a tree of cursors (union, intersection,
+ *   difference and phrase) that are moved lazily from the root, so no
+ *   postings list is materialized on the way, however complex the query.
+ */
+public class BooleanQuery {
+
+    /** A node of the parsed query. */
+    public abstract static class Node {
+
+        /** Returns true if this node matches the documents its child does not. */
+        boolean negated() {
+            return false;
+        }
+
+        /**
+         *  Returns a cursor over the matching documents, opening the term
+         *  cursors through <code>terms</code>.
+         */
+        abstract PostingsCursor cursor( Compiler terms );
+    }
+
+    /** A single term. */
+    static class Term extends Node {
+        final String term;
+
+        Term( String term ) {
+            this.term = term;
+        }
+
+        PostingsCursor cursor( Compiler terms ) {
+            return terms.open( term );
+        }
+
+        public String toString() {
+            return term;
+        }
+    }
+
+    /** Terms next to each other, in order. */
+    static class Phrase extends Node {
+        final ArrayList<String> terms;
+
+        Phrase( ArrayList<String> terms ) {
+            this.terms = terms;
+        }
+
+        /** Each distinct term gets one cursor, shared by its occurrences. */
+        PostingsCursor cursor( Compiler compiler ) {
+            if ( terms.size() == 1 ) {
+                return compiler.open( terms.get( 0 ));
+            }
+            HashMap<String,PostingsCursor> opened = new HashMap<String,PostingsCursor>();
+            PostingsCursor[] cursors = new PostingsCursor[terms.size()];
+            for ( int i=0; i<cursors.length; i++ ) {
+                cursors[i] = opened.get( terms.get( i ));
+                if ( cursors[i] == null ) {
+                    cursors[i] = compiler.open( terms.get( i ));
+                    opened.put( terms.get( i ), cursors[i] );
+                }
+            }
+            return new PhraseCursor( cursors );
+        }
+
+        public String toString() {
+            return "\"" + String.join( " ", terms ) + "\"";
+        }
+    }
+
+    /** The documents that do not match a node. */
+    static class Not extends Node {
+        final Node child;
+
+        Not( Node child ) {
+            this.child = child;
+        }
+
+        boolean negated() {
+            return true;
+        }
+
+        PostingsCursor cursor( Compiler terms ) {
+            return new DifferenceCursor( new AllDocsCursor( terms.numDocs ), child.cursor( terms ));
+        }
+
+        public String toString() {
+            return "not " + child;
+        }
+    }
+
+    /**
+     *  The documents that match all children. The negated children are
+     *  subtracted from the intersection of the others, so that a document
+     *  outside all of them is never visited.
+     */
+    static class And extends Node {
+        final ArrayList<Node> children;
+
+        And( ArrayList<Node> children ) {
+            this.children = children;
+        }
+
+        PostingsCursor cursor( Compiler terms ) {
+            ArrayList<PostingsCursor> include = new ArrayList<PostingsCursor>();
+            ArrayList<PostingsCursor> exclude = new ArrayList<PostingsCursor>();
+            for ( Node child : children ) {
+                if ( child.negated() ) {
+                    exclude.add((( Not )child ).child.cursor( terms ));
+                } else {
+                    include.add( child.cursor( terms ));
+                }
+            }
+            PostingsCursor in;
+            if ( include.isEmpty() ) {
+                in = new AllDocsCursor( terms.numDocs );
+            } else if ( include.size() == 1 ) {
+                in = include.get( 0 );
+            } else {
+                in = new IntersectionCursor( include.toArray( new PostingsCursor[0] ));
+            }
+            if ( exclude.isEmpty() ) {
+                return in;
+            }
+            PostingsCursor out = exclude.size() == 1 ? exclude.get( 0 ) : new UnionCursor( exclude.toArray( new PostingsCursor[0] ));
+            return new DifferenceCursor( in, out );
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder( "(" );
+            for ( Node child : children ) {
+                s.append( s.length() > 1 ? " and " : "" ).append( child );
+            }
+            return s.append( ")" ).toString();
+        }
+    }
+
+    /** The documents that match any child. */
+    static class Or extends Node {
+        final ArrayList<Node> children;
+
+        Or( ArrayList<Node> children ) {
+            this.children = children;
+        }
+
+        PostingsCursor cursor( Compiler terms ) {
+            PostingsCursor[] cursors = new PostingsCursor[children.size()];
+            for ( int i=0; i<cursors.length; i++ ) {
+                cursors[i] = children.get( i ).cursor( terms );
+            }
+            return new UnionCursor( cursors );
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder( "(" );
+            for ( Node child : children ) {
+                s.append( s.length() > 1 ? " or " : "" ).append( child );
+            }
+            return s.append( ")" ).toString();
+        }
+    }
+
+
+    /**
+     *  Opens the cursors of the terms of a query in an index. A term that
+     *  is not in the index gets an empty cursor, so that e.g. an OR still
+     *  finds the documents of its other terms.
+     */
+    public static class Compiler {
+        final Index index;
+
+        /** The docIDs of the documents range from 0 up to numDocs - 1. */
+        final int numDocs;
+
+        public Compiler( Index index, int numDocs ) {
+            this.index = index;
+            this.numDocs = numDocs;
+        }
+
+        PostingsCursor open( String term ) {
+            PostingsCursor cursor = index.getCursor( term );
+            return cursor == null ? new PostingsList().cursor() : cursor;
+        }
+    }
+
+
+    /** The parsed query. */
+    public final Node root;
+
+    /** The tokens of the query text, and the index of the next one. */
+    private final ArrayList<String> tokens = new ArrayList<String>();
+    private int next = 0;
+
+
+    /**
+     *  Parses a query.
+     *  @throws IllegalArgumentException if the query is not well-formed.
+     */
+    public BooleanQuery( String text ) {
+        tokenize( text );
+        if ( tokens.isEmpty() ) {
+            throw new IllegalArgumentException( "Empty query" );
+        }
+        root = parseOr();
+        if ( next < tokens.size() ) {
+            throw new IllegalArgumentException( "Unexpected " + tokens.get( next ));
+        }
+    }
+
+    /** Returns a cursor over the documents that match the query, in an index. */
+    public PostingsCursor cursor( Index index, int numDocs ) {
+        return root.cursor( new Compiler( index, numDocs ));
+    }
+
+    public String toString() {
+        return root.toString();
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Splits the text into words, parentheses and quotes. */
+    private void tokenize( String text ) {
+        int i = 0;
+        while ( i < text.length() ) {
+            char c = text.charAt( i );
+            if ( Character.isWhitespace( c )) {
+                i++;
+            } else if ( c == '(' || c == ')' || c == '"' ) {
+                tokens.add( String.valueOf( c ));
+                i++;
+            } else {
+                int start = i;
+                while ( i < text.length() && !Character.isWhitespace( c = text.charAt( i )) && c != '(' && c != ')' && c != '"' ) {
+                    i++;
+                }
+                tokens.add( text.substring( start, i ));
+            }
+        }
+    }
+
+    /** or := and ( OR and )* */
+    private Node parseOr() {
+        ArrayList<Node> children = new ArrayList<Node>();
+        children.add( parseAnd() );
+        while ( accept( "or" )) {
+            children.add( parseAnd() );
+        }
+        return children.size() == 1 ? children.get( 0 ) : new Or( children );
+    }
+
+    /** and := unary ( [AND] unary )* */
+    private Node parseAnd() {
+        ArrayList<Node> children = new ArrayList<Node>();
+        children.add( parseUnary() );
+        while ( true ) {
+            if ( accept( "and" )) {
+                children.add( parseUnary() );
+            } else if ( next < tokens.size() && !peek( ")" ) && !peek( "or" )) {
+                children.add( parseUnary() );
+            } else {
+                break;
+            }
+        }
+        return children.size() == 1 ? children.get( 0 ) : new And( children );
+    }
+
+    /** unary := NOT unary | ( or ) | " term* " | term */
+    private Node parseUnary() {
+        if ( next == tokens.size() ) {
+            throw new IllegalArgumentException( "Missing term at the end of the query" );
+        }
+        String token = tokens.get( next++ );
+        if ( token.equalsIgnoreCase( "not" )) {
+            Node child = parseUnary();
+            return child.negated() ? (( Not )child ).child : new Not( child );
+        }
+        if ( token.equals( "(" )) {
+            Node node = parseOr();
+            if ( !accept( ")" )) {
+                throw new IllegalArgumentException( "Missing )" );
+            }
+            return node;
+        }
+        if ( token.equals( "\"" )) {
+            ArrayList<String> terms = new ArrayList<String>();
+            while ( next < tokens.size() && !tokens.get( next ).equals( "\"" )) {
+                String term = tokens.get( next++ );
+                if ( !term.equals( "(" ) && !term.equals( ")" )) {
+                    terms.add( term );
+                }
+            }
+            if ( !accept( "\"" )) {
+                throw new IllegalArgumentException( "Missing closing quote" );
+            }
+            if ( terms.isEmpty() ) {
+                throw new IllegalArgumentException( "Empty phrase" );
+            }
+            return new Phrase( terms );
+        }
+        if ( token.equals( ")" ) || token.equalsIgnoreCase( "and" ) || token.equalsIgnoreCase( "or" )) {
+            throw new IllegalArgumentException( "Unexpected " + token );
+        }
+        return new Term( token );
+    }
+
+    /** Returns true if the next token is the given one, ignoring case. */
+    private boolean peek( String token ) {
+        return next < tokens.size() && tokens.get( next ).equalsIgnoreCase( token );
+    }
+
+    /** Moves past the next token if it is the given one, ignoring case. */
+    private boolean accept( String token ) {
+        if ( peek( token )) {
+            next++;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+
+/**
+ *   A cursor over the documents of one cursor that are not in another.
+ *
+ *   The excluded cursor is only advanced to the documents of the included
+ *   one, so it skips everything in between.
+ */
+public class DifferenceCursor extends PostingsCursor {
+
+    /** The documents to keep, unless they are excluded. */
+    final PostingsCursor include;
+
+    /** The documents to leave out. */
+    final PostingsCursor exclude;
+
+
+    /** Creates the difference of cursors that have not been moved yet. */
+    public DifferenceCursor( PostingsCursor include, PostingsCursor exclude ) {
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+
+    public int docID() {
+        return include.docID();
+    }
+
+    public int nextDoc() {
+        return skipExcluded( include.nextDoc() );
+    }
+
+    public int advance( int target ) {
+        if ( include.docID() >= target ) {
+            return include.docID();
+        }
+        return skipExcluded( include.advance( target ));
+    }
+
+    public int tf() {
+        return include.tf();
+    }
+
+    public int position( int j ) {
+        return include.position( j );
+    }
+
+    /** Returns the size of the included cursor, which bounds the number of documents. */
+    public int size() {
+        return include.size();
+    }
+
+    public double maxWeight() {
+        return include.maxWeight();
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Moves the included cursor from docID to its first document that is not excluded. */
+    private int skipExcluded( int docID ) {
+        while ( docID != NO_MORE_DOCS && exclude.advance( docID ) == docID ) {
+            docID = include.nextDoc();
+        }
+        return docID;
+    }
+}
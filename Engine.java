@@ -9,6 +9,7 @@ package ir;
 
 import java.util.ArrayList;
 import java.io.File;
+import java.io.IOException;
 
 /**
  *  This is the main class for the search engine.
@@ -37,9 +38,6 @@ public class Engine {
     /** Directories that should be indexed. */
     ArrayList<String> dirNames = new ArrayList<String>();
 
-    /** Lock to prevent simultaneous access to the index. */
-    Object indexLock = new Object();
-
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file = null;
 
@@ -47,11 +45,38 @@ public class Engine {
     String pic_file = "";
 
     /** The file containing the pageranks. */
-    String rank_file = "";
+    String rank_file = "pagerank";
+
+    /** The pagerank scores of the documents. */
+    PageRankScores pageranks;
+
+    /** The link graph to compute the pageranks from, instead of reading them from rank_file. */
+    String links_file = null;
+
+    /** The titles of the nodes of the link graph, if they are not the document names. */
+    String titles_file = null;
+
+    /** Number of random walks per node to estimate the pageranks with, or 0 for power iteration. */
+    int pagerank_walks = 0;
 
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** Memory budget in megabytes for the main-memory part of a persistent index (0 means default). */
+    long memory_budget = 0;
+
+    /** Whether a persistent index is read through memory-mapped files. */
+    boolean memory_mapped = false;
+
+    /** Size in megabytes of the postings cache of a persistent index (-1 means default). */
+    long cache_size = -1;
+
+    /** Size in megabytes of the cache of query results (-1 means default, 0 means none). */
+    long query_cache_size = -1;
+
+    /** Number of threads used for indexing. One thread indexes sequentially; -t opts in to more. */
+    int indexing_threads = 1;
+
 
     /* ----------------------------------------------- */
 
@@ -62,34 +87,77 @@ public class Engine {
      */
     public Engine( String[] args ) {
         decodeArgs( args );
-        indexer = new Indexer( index, kgIndex, patterns_file );
-        searcher = new Searcher( index, kgIndex );
+        if ( memory_budget > 0 && index instanceof PersistentHashedIndex ) {
+            ((PersistentHashedIndex)index).setMemoryBudget( memory_budget * 1024 * 1024 );
+        }
+        if ( cache_size >= 0 && index instanceof PersistentHashedIndex ) {
+            ((PersistentHashedIndex)index).setCacheSize( cache_size * 1024 * 1024 );
+        }
+        if ( memory_mapped && index instanceof PersistentHashedIndex ) {
+            ((PersistentHashedIndex)index).setMemoryMapped( true );
+        }
+        indexer = new Indexer( index, kgIndex, patterns_file, indexing_threads );
+        pageranks = new PageRankScores( rank_file );
+        searcher = new Searcher( index, kgIndex, pageranks );
+        if ( query_cache_size >= 0 ) {
+            searcher.cache = query_cache_size == 0 ? null : new QueryCache( query_cache_size * 1024 * 1024 );
+        }
         gui = new SearchGUI( this );
         gui.init();
+        if ( links_file != null ) {
+            computePageRank();
+        }
         /*
          *   Calls the indexer to index the chosen directory structure.
-         *   Access to the index is synchronized since we don't want to
-         *   search at the same time we're indexing new files (this might
-         *   corrupt the index).
+         *   Searches need no lock: they read the last index published by
+         *   cleanup(), which is not modified while new files are indexed.
          */
         if (is_indexing) {
-            synchronized ( indexLock ) {
-                gui.displayInfoText( "Indexing, please wait..." );
-                long startTime = System.currentTimeMillis();
-                for ( int i=0; i<dirNames.size(); i++ ) {
-                    File dokDir = new File( dirNames.get( i ));
-                    indexer.processFiles( dokDir, is_indexing );
-                }
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
-                index.cleanup();
+            gui.displayInfoText( "Indexing, please wait..." );
+            long startTime = System.currentTimeMillis();
+            for ( int i=0; i<dirNames.size(); i++ ) {
+                File dokDir = new File( dirNames.get( i ));
+                indexer.processFiles( dokDir, is_indexing );
             }
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            String info = String.format( "Indexing done in %.1f seconds using %d thread(s).", elapsedTime/1000.0, indexer.getThreads() );
+            System.err.println( info );
+            gui.displayInfoText( info );
+            index.cleanup();
         } else {
             gui.displayInfoText( "Index is loaded from disk" );
         }
     }
 
 
+    /**
+     *   Computes the pageranks from the link graph, and replaces the
+     *   scores used by the searcher with them.
+     */
+    private void computePageRank() {
+        try {
+            long startTime = System.currentTimeMillis();
+            PageRank pr = new PageRank( links_file );
+            double[] rank;
+            String info;
+            if ( pagerank_walks > 0 ) {
+                rank = pr.monteCarlo( pagerank_walks, startTime );
+                info = String.format( "PageRank of %d nodes and %d links estimated with %d walk(s) per node in %.1f seconds.",
+                                      pr.numNodes, pr.numLinks, pagerank_walks, ( System.currentTimeMillis() - startTime ) / 1000.0 );
+            } else {
+                rank = pr.powerIteration( PageRank.EPSILON, PageRank.MAX_NUMBER_OF_STEPS );
+                info = String.format( "PageRank of %d nodes and %d links computed in %d iterations (residual %.2e) in %.1f seconds.",
+                                      pr.numNodes, pr.numLinks, pr.iterations, pr.residual, ( System.currentTimeMillis() - startTime ) / 1000.0 );
+            }
+            pageranks.set( pr.byName( rank, titles_file == null ? null : PageRank.readTitles( titles_file )));
+            System.err.println( info );
+            gui.displayInfoText( info );
+        } catch ( IOException e ) {
+            System.err.println( "Could not compute the pageranks from " + links_file + ": " + e.getMessage() );
+        }
+    }
+
+
     /* ----------------------------------------------- */
 
     /**
@@ -118,6 +186,44 @@ public class Engine {
                 if ( i < args.length ) {
                     rank_file = args[i++];
                 }
+            } else if ( "-g".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    links_file = args[i++];
+                }
+            } else if ( "-gt".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    titles_file = args[i++];
+                }
+            } else if ( "-gw".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    pagerank_walks = Integer.parseInt( args[i++] );
+                }
+            } else if ( "-t".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    indexing_threads = Integer.parseInt( args[i++] );
+                }
+            } else if ( "-m".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    memory_budget = Long.parseLong( args[i++] );
+                }
+            } else if ( "-c".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    cache_size = Long.parseLong( args[i++] );
+                }
+            } else if ( "-qc".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    query_cache_size = Long.parseLong( args[i++] );
+                }
+            } else if ( "-mmap".equals( args[i] )) {
+                i++;
+                memory_mapped = true;
             } else if ( "-ni".equals( args[i] )) {
                 i++;
                 is_indexing = false;
@@ -0,0 +1,145 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ *   Reads UTF-8 text files into memory for tokenization.
+ *
+ *   A file is read with one FileChannel, in a single bulk read into a
+ *   byte buffer, or memory-mapped if it is large, and decoded straight
+ *   into a char array that the tokenizer then works on in place. The
+ *   buffers and the decoder are reused from file to file, so reading a
+ *   small file allocates next to nothing.
+ *
+ *   Each thread has its own loader, and the text of a file is only valid
+ *   until the same thread loads the next one. Files too large to hold in
+ *   memory are streamed through a Reader instead.
+ */
+public class FileLoader {
+
+    /** Files of at least this many bytes are memory-mapped rather than read. */
+    static final long MAP_THRESHOLD = 1L << 20;
+
+    /** Files of more than this many bytes are streamed. */
+    static final long MAX_LENGTH = 1L << 28;
+
+    /** The loader of each thread. */
+    private static final ThreadLocal<FileLoader> loaders = ThreadLocal.withInitial( FileLoader::new );
+
+    /** Decodes UTF-8, replacing malformed input like an InputStreamReader does. */
+    final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput( CodingErrorAction.REPLACE )
+        .onUnmappableCharacter( CodingErrorAction.REPLACE );
+
+    /** The bytes of the last file that was read rather than mapped. */
+    ByteBuffer bytes = ByteBuffer.allocate( 1 << 16 );
+
+    /** The text of the last file, with room for one more character. */
+    char[] chars = new char[1 << 16];
+    CharBuffer charBuffer = CharBuffer.wrap( chars );
+
+    /** The length of the text of the last file. */
+    int length = 0;
+
+
+    /** Returns the loader of the calling thread. */
+    public static FileLoader forThread() {
+        return loaders.get();
+    }
+
+
+    /**
+     *  Returns a tokenizer over a file, which works on the text in this
+     *  loader unless the file is too large. The tokenizer must be closed.
+     */
+    public Tokenizer tokenizer( File f, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, String pattern_file ) throws IOException {
+        if ( load( f )) {
+            return new Tokenizer( chars, length, case_folding, remove_diacritics, remove_punctuation, pattern_file );
+        }
+        Reader reader = new InputStreamReader( new FileInputStream( f ), StandardCharsets.UTF_8 );
+        return new Tokenizer( reader, case_folding, remove_diacritics, remove_punctuation, pattern_file );
+    }
+
+
+    /**
+     *  Returns a tokenizer over the text of a file that has already been
+     *  read into a buffer, from <code>start</code> and <code>length</code>
+     *  bytes on. The text is decoded into this loader.
+     */
+    public Tokenizer tokenizer( ByteBuffer bytes, int start, int length, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, String pattern_file ) {
+        bytes.limit( bytes.capacity() ).position( start );
+        bytes.limit( start + length );
+        decode( bytes );
+        return new Tokenizer( chars, this.length, case_folding, remove_diacritics, remove_punctuation, pattern_file );
+    }
+
+
+    /**
+     *  Reads and decodes a file, whose text is then given by chars() and
+     *  length().
+     *  @return false if the file is too large to be loaded.
+     */
+    public boolean load( File f ) throws IOException {
+        try ( FileChannel channel = FileChannel.open( f.toPath(), StandardOpenOption.READ )) {
+            long size = channel.size();
+            if ( size > MAX_LENGTH ) {
+                return false;
+            }
+            if ( size >= MAP_THRESHOLD ) {
+                decode( channel.map( FileChannel.MapMode.READ_ONLY, 0, size ));
+            } else {
+                if ( bytes.capacity() < size ) {
+                    bytes = ByteBuffer.allocate( (int)Math.max( size, 2L * bytes.capacity() ));
+                }
+                bytes.clear().limit( (int)size );
+                while ( bytes.hasRemaining() && channel.read( bytes ) >= 0 ) {
+                    // Keep reading until the whole file is in
+                }
+                bytes.flip();
+                decode( bytes );
+            }
+            return true;
+        }
+    }
+
+    /** Returns the array holding the text of the last file. */
+    public char[] chars() {
+        return chars;
+    }
+
+    /** Returns the length of the text of the last file. */
+    public int length() {
+        return length;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Decodes bytes into the char array, leaving room for one more character. */
+    private void decode( ByteBuffer in ) {
+        long needed = (long)Math.ceil( in.remaining() * (double)decoder.maxCharsPerByte() ) + 1;
+        if ( chars.length < needed ) {
+            chars = new char[(int)Math.max( needed, Math.min( 2L * chars.length, Integer.MAX_VALUE - 8 ))];
+            charBuffer = CharBuffer.wrap( chars );
+        }
+        charBuffer.clear().limit( chars.length - 1 );
+        decoder.reset();
+        decoder.decode( in, charBuffer, true );
+        decoder.flush( charBuffer );
+        length = charBuffer.position();
+    }
+}
@@ -8,30 +8,89 @@
 
 package ir;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
 
 
 /**
- *   Implements an inverted index as a Hashtable from words to PostingsLists.
+ *   Implements an inverted index as a table of PostingsLists by term ID.
+ *
+ *   The terms are kept in a TermDictionary, which stores their characters
+ *   in one array and maps them to consecutive int IDs; a term is looked up
+ *   by hashing its characters, without a String per term or a map entry
+ *   per term. A KGramIndex can share the dictionary, so that each term is
+ *   stored once for both indexes.
+ *
+ *   The table is only searched once indexing is done and cleanup() has
+ *   published it. From then on it is never modified, so any number of
+ *   queries can read it at the same time without locking.
  */
 public class HashedIndex implements Index {
 
 
-    /** The index as a hashtable. */
-    private HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
+    /** The terms of the index. */
+    private final TermDictionary terms;
+
+    /** The postings lists by term ID, null for terms of the dictionary not in the index. */
+    private PostingsList[] index = new PostingsList[1024];
+
+    /** The table searched by queries: empty while indexing, then the finished index. */
+    private volatile PostingsList[] published = new PostingsList[0];
+
+    /** Number of times the index has been published. */
+    private volatile long generation = 0;
+
+
+    /** Creates an empty index with a dictionary of its own. */
+    public HashedIndex() {
+        this( new TermDictionary() );
+    }
+
+    /** Creates an empty index over the given dictionary. */
+    public HashedIndex( TermDictionary terms ) {
+        this.terms = terms;
+    }
+
+
+    /**
+     *  Returns the dictionary of the index. Terms added to it while
+     *  indexing must be inserted with their IDs.
+     */
+    public TermDictionary getTermDictionary() {
+        return terms;
+    }
 
 
     /**
      *  Inserts this token in the hashtable.
      */
     public void insert( String token, int docID, int offset ) {
+        insert( terms.add( token ), docID, offset );
+    }
 
-    	//if token is not in hashmap, make new postings list
-    	if(!index.containsKey(token)){index.put(token, new PostingsList());}
+    /**
+     *  Inserts a token, given by its ID in the dictionary of the index.
+     */
+    public void insert( int termID, int docID, int offset ) {
+        ensureCapacity( termID );
+        //if token is not in the table, make new postings list
+        if ( index[termID] == null ) {
+            index[termID] = new PostingsList();
+        }
+        //add new entry
+        index[termID].insert( docID, offset );
+    }
 
-    	//add new entry
-    	index.get(token).insert(docID, 1.0, offset);
+    /**
+     *  Appends a partial postings list built by another thread.
+     */
+    public void merge( String token, PostingsList postings ) {
+        int termID = terms.add( token );
+        ensureCapacity( termID );
+        if ( index[termID] == null ) {
+            index[termID] = postings;
+        } else {
+            index[termID].append( postings );
+        }
     }
 
     /**
@@ -39,14 +98,56 @@ public class HashedIndex implements Index {
      *  if the term is not in the index.
      */
     public PostingsList getPostings( String token ) {
-        if(!index.containsKey(token)){return null;}
-	       else{return index.get(token);}
+        PostingsList[] lists = published;
+        // The dictionary is only read once it has been published
+        if ( lists.length == 0 ) {
+            return null;
+        }
+        int termID = terms.find( token );
+        return termID >= 0 && termID < lists.length ? lists[termID] : null;
    }
 
 
     /**
-     *  No need for cleanup in a HashedIndex.
+     *  Returns a cursor over the postings for a specific term, or null
+     *  if the term is not in the index.
+     */
+    public PostingsCursor getCursor( String token ) {
+        PostingsList pl = getPostings( token );
+        return pl == null ? null : pl.cursor();
+    }
+
+
+    /**
+     *  Computes the score bounds of the postings lists, and publishes the
+     *  finished index to queries.
      */
     public void cleanup() {
+        int[] lengths = Index.docLengthArray();
+        for ( PostingsList pl : index ) {
+            if ( pl != null ) {
+                pl.setMaxWeight( lengths );
+            }
+        }
+        published = index;
+        generation++;
+    }
+
+
+    /**
+     *  Returns the number of times the index has been published.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    private void ensureCapacity( int termID ) {
+        if ( termID >= index.length ) {
+            index = Arrays.copyOf( index, Math.max( 2 * index.length, termID + 1 ));
+        }
     }
 }
@@ -9,6 +9,8 @@ package ir;
 
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *  Defines some common data structures and methods that all types of
@@ -17,17 +19,45 @@ import java.util.Iterator;
 public interface Index {
 
     /** Mapping from document identifiers to document names. */
-    public HashMap<Integer,String> docNames = new HashMap<Integer,String>();
+    public ConcurrentHashMap<Integer,String> docNames = new ConcurrentHashMap<Integer,String>();
     
     /** Mapping from document identifier to document length. */
-    public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
+    public ConcurrentHashMap<Integer,Integer> docLengths = new ConcurrentHashMap<Integer,Integer>();
 
     /** Inserts a token into the index. */
     public void insert( String token, int docID, int offset );
 
+    /**
+     *  Appends a partial postings list for a term. All docIDs in the partial
+     *  list must be larger than the docIDs already indexed for the term.
+     */
+    public void merge( String token, PostingsList postings );
+
     /** Returns the postings for a given term. */
     public PostingsList getPostings( String token );
 
+    /** Returns a cursor over the postings for a given term, or null if there are none. */
+    public PostingsCursor getCursor( String token );
+
+    /** Returns a number that grows each time the postings that queries read change. */
+    public long getGeneration();
+
+    /**
+     *  Returns the document lengths as an array indexed by docID, with 0
+     *  for unknown documents.
+     */
+    public static int[] docLengthArray() {
+        int n = 0;
+        for ( int docID : docLengths.keySet() ) {
+            n = Math.max( n, docID + 1 );
+        }
+        int[] lengths = new int[n];
+        for ( Map.Entry<Integer,Integer> e : docLengths.entrySet() ) {
+            lengths[e.getKey()] = e.getValue();
+        }
+        return lengths;
+    }
+
     /** This method is called on exit. */
     public void cleanup();
 
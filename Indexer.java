@@ -8,8 +8,10 @@
 package ir;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.nio.charset.*;
 
 
 /**
@@ -29,15 +31,45 @@ public class Indexer {
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file;
 
+    /** Number of worker threads tokenizing documents (1 means sequential indexing). */
+    int threads = 1;
+
+    /** Number of consecutive documents handed to a worker at a time. */
+    static final int BATCH_SIZE = 64;
+
+    /**
+     *  The index if it is a HashedIndex, which sequential indexing fills by
+     *  term ID with the terms in its dictionary, so that no token is made a
+     *  String; otherwise null, and tokens are inserted as Strings.
+     */
+    private final HashedIndex hashed;
+
+    /** The pipeline of the last parallel indexing, or null. */
+    private volatile IndexingPipeline pipeline = null;
+
 
     /* ----------------------------------------------- */
 
 
     /** Constructor */
     public Indexer( Index index, KGramIndex kgIndex, String patterns_file ) {
+        this( index, kgIndex, patterns_file, 1 );
+    }
+
+
+    /** Constructor for parallel indexing with the given number of worker threads. */
+    public Indexer( Index index, KGramIndex kgIndex, String patterns_file, int threads ) {
         this.index = index;
         this.kgIndex = kgIndex;
         this.patterns_file = patterns_file;
+        this.threads = Math.max( 1, threads );
+        this.hashed = index instanceof HashedIndex ? (HashedIndex)index : null;
+    }
+
+
+    /** Returns the number of worker threads used for indexing. */
+    public int getThreads() {
+        return threads;
     }
 
 
@@ -49,39 +81,190 @@ public class Indexer {
     /**
      *  Tokenizes and indexes the file @code{f}. If <code>f</code> is a directory,
      *  all its files and subdirectories are recursively processed.
+     *
+     *  With more than one thread, the files go through an IndexingPipeline,
+     *  which discovers them in the same order as the sequential traversal, so
+     *  every file gets the same docID regardless of how many threads are used.
      */
     public void processFiles( File f, boolean is_indexing ) {
+        if ( !is_indexing ) {
+            return;
+        }
+        if ( threads == 1 ) {
+            processFilesSequentially( f );
+        } else {
+            pipeline = new IndexingPipeline( index, kgIndex, patterns_file, threads, lastDocID );
+            lastDocID += pipeline.run( f );
+            System.err.print( pipeline.stats() );
+        }
+    }
+
+
+    /**
+     *  Recursively tokenizes and indexes the file @code{f} on the calling thread.
+     */
+    private void processFilesSequentially( File f ) {
         // do not try to index fs that cannot be read
-        if (is_indexing) {
-            if ( f.canRead() ) {
-                if ( f.isDirectory() ) {
-                    String[] fs = f.list();
-                    // an IO error could occur
-                    if ( fs != null ) {
-                        for ( int i=0; i<fs.length; i++ ) {
-                            processFiles( new File( f, fs[i] ), is_indexing );
-                        }
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                // an IO error could occur
+                if ( fs != null ) {
+                    Arrays.sort( fs );
+                    for ( int i=0; i<fs.length; i++ ) {
+                        processFilesSequentially( new File( f, fs[i] ));
                     }
-                } else {
-                    // First register the document and get a docID
-                    int docID = generateDocID();
-                    if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
-                    try {
-                        Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                        Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-                        int offset = 0;
+                }
+            } else {
+                // First register the document and get a docID
+                int docID = generateDocID();
+                if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
+                try {
+                    Tokenizer tok = FileLoader.forThread().tokenizer( f, true, false, true, patterns_file );
+                    int offset = 0;
+                    if ( hashed != null ) {
+                        TermDictionary terms = hashed.getTermDictionary();
+                        int termID;
+                        while (( termID = tok.nextTermID( terms )) >= 0 ) {
+                            insertIntoIndex( docID, termID, offset++ );
+                        }
+                    } else {
                         while ( tok.hasMoreTokens() ) {
-                            String token = tok.nextToken();
-                            insertIntoIndex( docID, token, offset++ );
+                            insertIntoIndex( docID, tok.nextToken(), offset++ );
+                        }
+                    }
+                    index.docNames.put( docID, f.getPath() );
+                    index.docLengths.put( docID, offset );
+                    tok.close();
+                } catch ( IOException e ) {
+                    System.err.println( "Warning: IOException during indexing." );
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Returns the counters of the stages of the last parallel indexing, or
+     *  null if there has been none.
+     */
+    public IndexingPipeline getPipeline() {
+        return pipeline;
+    }
+
+
+    /**
+     *  A run of consecutive documents tokenized by one worker thread into
+     *  its own partial index.
+     */
+    static class Batch {
+
+        /** Marks a file that could not be read, in <code>sizes</code>. */
+        static final int UNREADABLE = -2;
+
+        /** The files of this batch. */
+        final List<File> files;
+
+        /** The docID of the first file. */
+        final int firstDocID;
+
+        /** The terms of this batch, and their postings lists by term ID. */
+        final TermDictionary terms = new TermDictionary();
+        final ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
+
+        /** The terms by term ID, filled in when the batch has been tokenized. */
+        String[] termStrings;
+
+        /** Document lengths, or -1 for files that could not be read. */
+        final int[] lengths;
+
+        /**
+         *  The bytes of the files read ahead of tokenization, or null if
+         *  they have not been read.
+         */
+        ByteBuffer bytes = null;
+
+        /**
+         *  Where the bytes of each file start, and how many there are; -1 if
+         *  the file is large and left to the tokenizer, or UNREADABLE.
+         */
+        int[] starts;
+        int[] sizes;
+
+        Batch( List<File> files, int firstDocID ) {
+            this.files = files;
+            this.firstDocID = firstDocID;
+            this.lengths = new int[files.size()];
+        }
+
+        /**
+         *  Reads the files into a buffer, one after the other, except those
+         *  large enough to be memory-mapped. The buffer is replaced by a
+         *  larger one if needed.
+         */
+        void read( ByteBuffer buffer ) {
+            starts = new int[files.size()];
+            sizes = new int[files.size()];
+            buffer.clear();
+            for ( int i=0; i<files.size(); i++ ) {
+                try ( FileChannel channel = FileChannel.open( files.get( i ).toPath(), StandardOpenOption.READ )) {
+                    long size = channel.size();
+                    if ( size >= FileLoader.MAP_THRESHOLD ) {
+                        sizes[i] = -1;
+                        continue;
+                    }
+                    if ( buffer.remaining() < size ) {
+                        ByteBuffer larger = ByteBuffer.allocate( (int)Math.max( 2L * buffer.capacity(), buffer.position() + size ));
+                        buffer.flip();
+                        larger.put( buffer );
+                        buffer = larger;
+                    }
+                    starts[i] = buffer.position();
+                    buffer.limit( starts[i] + (int)size );
+                    while ( buffer.hasRemaining() && channel.read( buffer ) >= 0 ) {
+                        // Keep reading until the whole file is in
+                    }
+                    sizes[i] = buffer.position() - starts[i];
+                    buffer.limit( buffer.capacity() );
+                } catch ( IOException e ) {
+                    sizes[i] = UNREADABLE;
+                }
+            }
+            bytes = buffer;
+        }
+
+        void tokenize( String patterns_file ) {
+            FileLoader loader = FileLoader.forThread();
+            for ( int i=0; i<files.size(); i++ ) {
+                int docID = firstDocID + i;
+                try {
+                    Tokenizer tok;
+                    if ( bytes == null || sizes[i] == -1 ) {
+                        tok = loader.tokenizer( files.get( i ), true, false, true, patterns_file );
+                    } else if ( sizes[i] == UNREADABLE ) {
+                        throw new IOException( "Could not read " + files.get( i ));
+                    } else {
+                        tok = loader.tokenizer( bytes, starts[i], sizes[i], true, false, true, patterns_file );
+                    }
+                    int offset = 0;
+                    int termID;
+                    while (( termID = tok.nextTermID( terms )) >= 0 ) {
+                        if ( termID == lists.size() ) {
+                            lists.add( new PostingsList() );
                         }
-                        index.docNames.put( docID, f.getPath() );
-                        index.docLengths.put( docID, offset );
-                        reader.close();
-                    } catch ( IOException e ) {
-                        System.err.println( "Warning: IOException during indexing." );
+                        lists.get( termID ).insert( docID, offset++ );
                     }
+                    lengths[i] = offset;
+                    tok.close();
+                } catch ( IOException e ) {
+                    lengths[i] = -1;
+                    System.err.println( "Warning: IOException during indexing." );
                 }
             }
+            termStrings = new String[lists.size()];
+            for ( int id=0; id<termStrings.length; id++ ) {
+                termStrings[id] = terms.term( id );
+            }
         }
     }
 
@@ -97,4 +280,20 @@ public class Indexer {
         if (kgIndex != null)
             kgIndex.insert(token);
     }
+
+
+    /**
+     *  Indexes one token, given by its ID in the dictionary of the
+     *  HashedIndex.
+     */
+    private void insertIntoIndex( int docID, int termID, int offset ) {
+        hashed.insert( termID, docID, offset );
+        if ( kgIndex != null ) {
+            if ( kgIndex.getTermDictionary() == hashed.getTermDictionary() ) {
+                kgIndex.insert( termID );
+            } else {
+                kgIndex.insert( hashed.getTermDictionary().term( termID ));
+            }
+        }
+    }
 }
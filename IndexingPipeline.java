@@ -0,0 +1,584 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+
+/**
+ *   Indexes files in stages connected by bounded queues:
+ *
+ *      discover -> read -> tokenize -> invert -> shard writers -> index, k-grams
+ *
+ *   Discovery walks the directories in the same sorted order as sequential
+ *   indexing, and groups consecutive files into batches, so that every file
+ *   gets the same docID. Reading fills a buffer with the bytes of the files
+ *   of a batch, on virtual threads where the JVM has them and on a pool of
+ *   IO_THREADS threads otherwise. Tokenization decodes the files of a batch
+ *   and builds a partial index of it, on one CPU thread per indexing
+ *   thread. Inversion puts the batches back in docID order and splits
+ *   their postings by term among the shard writers, each of which appends
+ *   the postings of its own terms to its own lists. Whenever the shards
+ *   hold about DRAIN_BYTES of postings, and at the end, their lists are
+ *   merged into the index, and their terms into the k-gram index, by one
+ *   thread; the two indexes may share a term dictionary.
+ *
+ *   This last step is serial: the indexes are not thread-safe, and the
+ *   inversion thread does the merge itself, so no batch is inverted while
+ *   it runs. Its share of the elapsed time bounds the speedup from more
+ *   threads, and stats() reports it.
+ *
+ *   A fixed number of batch buffers go round the stages, and a batch is
+ *   only discovered when a buffer is free, i.e. when an earlier batch has
+ *   been inverted. A slow stage thus holds up the ones before it instead of
+ *   letting memory grow. Each stage counts its items and busy time, and
+ *   samples the depth of its input queue; see stats().
+ */
+public class IndexingPipeline {
+
+    /** Number of threads reading files when there are no virtual threads. */
+    static final int IO_THREADS = 4;
+
+    /** The shards are merged into the index when they hold about this many bytes of postings. */
+    static final long DRAIN_BYTES = 64L << 20;
+
+    /** The initial size of a batch buffer. */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /** Capacity of the queue of each shard writer. */
+    static final int WRITER_QUEUE = 16;
+
+    /** The index that is built. */
+    final Index index;
+
+    /** The k-gram index that is built, or null. */
+    final KGramIndex kgIndex;
+
+    /** The patterns matching non-standard words, or null. */
+    final String patterns_file;
+
+    /** Number of tokenizing threads. */
+    final int threads;
+
+    /** Number of shard writers. */
+    final int shards;
+
+    /** The docID of the first file. */
+    final int firstDocID;
+
+    /** The queues between the stages. */
+    final ArrayBlockingQueue<Indexer.Batch> toRead;
+    final ArrayBlockingQueue<Indexer.Batch> toTokenize;
+    final ArrayBlockingQueue<Indexer.Batch> toInvert;
+    final ArrayList<ArrayBlockingQueue<Object>> toWrite = new ArrayList<ArrayBlockingQueue<Object>>();
+
+    /** The free batch buffers. */
+    final ArrayBlockingQueue<ByteBuffer> buffers;
+
+    /** The stages. */
+    final Stage discover;
+    final Stage read;
+    final Stage tokenize;
+    final Stage invert;
+    final Stage write;
+    final Stage kgram;
+    final Stage merge;
+
+    /** Number of batches and files discovered, or -1 until discovery is done. */
+    volatile int totalBatches = -1;
+    volatile int totalFiles = -1;
+
+    /** Number of files given docIDs so far. */
+    volatile int dispatched = 0;
+
+    /** The first error in any stage, or null. */
+    volatile Throwable failure = null;
+
+    /** The threads of the stages, and the executor reading the files. */
+    final ArrayList<Thread> workers = new ArrayList<Thread>();
+    Thread discoverer;
+    ExecutorService io;
+
+    /** When the pipeline was started and stopped. */
+    volatile long startTime = 0;
+    volatile long stopTime = 0;
+
+
+    /**
+     *  A part of a batch for one shard writer: terms and their partial
+     *  postings lists.
+     */
+    static class Part {
+        final ArrayList<String> terms = new ArrayList<String>();
+        final ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
+    }
+
+    /** Asks the shard writers for their lists. */
+    static class Drain {
+        final CountDownLatch done;
+        final ArrayList<HashMap<String,PostingsList>> lists = new ArrayList<HashMap<String,PostingsList>>();
+
+        Drain( int shards ) {
+            done = new CountDownLatch( shards );
+            for ( int i=0; i<shards; i++ ) {
+                lists.add( null );
+            }
+        }
+    }
+
+
+    /**
+     *  Creates a pipeline that indexes files into an index (and a k-gram
+     *  index, unless it is null) with the given number of tokenizing
+     *  threads, numbering the files from firstDocID.
+     */
+    public IndexingPipeline( Index index, KGramIndex kgIndex, String patterns_file, int threads, int firstDocID ) {
+        this.index = index;
+        this.kgIndex = kgIndex;
+        this.patterns_file = patterns_file;
+        this.threads = Math.max( 1, threads );
+        this.shards = Math.max( 1, this.threads / 2 );
+        this.firstDocID = firstDocID;
+        toRead = new ArrayBlockingQueue<Indexer.Batch>( 2 * this.threads );
+        toTokenize = new ArrayBlockingQueue<Indexer.Batch>( 2 * this.threads );
+        toInvert = new ArrayBlockingQueue<Indexer.Batch>( 2 * this.threads );
+        buffers = new ArrayBlockingQueue<ByteBuffer>( 4 * this.threads );
+        for ( int i=0; i<4*this.threads; i++ ) {
+            buffers.add( ByteBuffer.allocate( BUFFER_SIZE ));
+        }
+        for ( int i=0; i<shards; i++ ) {
+            toWrite.add( new ArrayBlockingQueue<Object>( WRITER_QUEUE ));
+        }
+        // The discovery "queue" is the free buffers
+        discover = new Stage( "discover", buffers::size, buffers.size() );
+        read = new Stage( "read", toRead::size, 2 * this.threads );
+        tokenize = new Stage( "tokenize", toTokenize::size, 2 * this.threads );
+        invert = new Stage( "invert", toInvert::size, 2 * this.threads );
+        write = new Stage( "write", () -> toWrite.stream().mapToInt( BlockingQueue::size ).sum(), shards * WRITER_QUEUE );
+        kgram = new Stage( "k-grams", null, 0 );
+        merge = new Stage( "merge", null, 0 );
+    }
+
+
+    /**
+     *  Indexes the file f, or all files below it if it is a directory, and
+     *  returns the number of files that were given docIDs. The calling
+     *  thread puts the batches in order and merges them into the index.
+     *  If a stage fails, the files given docIDs by then are counted too,
+     *  whether they were indexed or not, so that no docID is used twice.
+     */
+    public int run( File f ) {
+        startTime = System.nanoTime();
+        io = readExecutor();
+        discoverer = start( "indexer-discover", () -> discover( f ));
+        start( "indexer-read", this::dispatchReads );
+        for ( int i=0; i<threads; i++ ) {
+            start( "indexer-tokenize-" + i, this::tokenize );
+        }
+        for ( int i=0; i<shards; i++ ) {
+            final int shard = i;
+            start( "indexer-write-" + i, () -> write( shard ));
+        }
+        try {
+            invert();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        } catch ( Exception e ) {
+            failure = failure == null ? e : failure;
+        } finally {
+            stop();
+        }
+        if ( failure != null ) {
+            failure.printStackTrace();
+        }
+        return dispatched;
+    }
+
+
+    /**
+     *  Returns a table of the stages: how many items each has processed
+     *  and how fast, how many threads it kept busy on average, and how full
+     *  its input queue was. A stage whose queue is mostly full is slower
+     *  than the one before it; e.g. a full tokenize queue means indexing is
+     *  CPU-bound, and an empty one that it is I/O-bound. The last line is
+     *  the share of the time spent merging into the indexes, which is
+     *  serial.
+     */
+    public String stats() {
+        long end = stopTime == 0 ? System.nanoTime() : stopTime;
+        double seconds = Math.max( 1e-9, ( end - startTime ) / 1e9 );
+        StringBuilder s = new StringBuilder();
+        s.append( String.format( "Indexing pipeline, %.1f s:%n", seconds ));
+        for ( Stage stage : new Stage[] { discover, read, tokenize, invert, write, merge, kgram } ) {
+            if ( stage == kgram && kgIndex == null ) {
+                continue;
+            }
+            s.append( stage.report( seconds )).append( String.format( "%n" ));
+        }
+        double serial = ( merge.busyNanos.get() + kgram.busyNanos.get() ) / 1e9;
+        s.append( String.format( "  serial merge into the indexes: %.1f s, %.1f%% of the time%n", serial, 100 * serial / seconds ));
+        return s.toString();
+    }
+
+
+    /**
+     *  The counters of one stage. The depth of the input queue is sampled
+     *  each time the stage takes an item.
+     */
+    public static class Stage {
+        final String name;
+        final IntSupplier depth;
+        final int capacity;
+        final AtomicLong items = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong depthSum = new AtomicLong();
+        final AtomicLong samples = new AtomicLong();
+        volatile int maxDepth = 0;
+
+        Stage( String name, IntSupplier depth, int capacity ) {
+            this.name = name;
+            this.depth = depth;
+            this.capacity = capacity;
+        }
+
+        /** Samples the depth of the input queue. */
+        void sample() {
+            if ( depth != null ) {
+                int d = depth.getAsInt();
+                depthSum.addAndGet( d );
+                samples.incrementAndGet();
+                if ( d > maxDepth ) {
+                    maxDepth = d;
+                }
+            }
+        }
+
+        /** Counts items processed since the given time. */
+        void done( long start, long n ) {
+            busyNanos.addAndGet( System.nanoTime() - start );
+            items.addAndGet( n );
+        }
+
+        /** Returns the number of items processed. */
+        public long items() {
+            return items.get();
+        }
+
+        /** Returns the average number of threads busy in this stage over the given time. */
+        public double busyThreads( double seconds ) {
+            return busyNanos.get() / 1e9 / seconds;
+        }
+
+        /** Returns the average sampled depth of the input queue. */
+        public double meanDepth() {
+            long n = samples.get();
+            return n == 0 ? 0 : (double)depthSum.get() / n;
+        }
+
+        String report( double seconds ) {
+            String queue = depth == null ? "" : String.format( "  queue %5.1f avg %3d max of %d", meanDepth(), maxDepth, capacity );
+            return String.format( "  %-9s %9d items %10.0f /s  %5.2f threads busy%s", name, items(), items() / seconds, busyThreads( seconds ), queue );
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** The body of a stage thread. */
+    interface Body {
+        void run() throws Exception;
+    }
+
+    /** Starts a daemon thread running a stage until it is interrupted or fails. */
+    private Thread start( String name, Body body ) {
+        Thread t = new Thread( () -> {
+                try {
+                    body.run();
+                } catch ( InterruptedException e ) {
+                    // The pipeline is stopping
+                } catch ( Throwable e ) {
+                    fail( e );
+                }
+            }, name );
+        t.setDaemon( true );
+        workers.add( t );
+        t.start();
+        return t;
+    }
+
+    private void fail( Throwable e ) {
+        if ( failure == null ) {
+            failure = e;
+        }
+    }
+
+    private void stop() {
+        for ( Thread t : workers ) {
+            t.interrupt();
+        }
+        io.shutdownNow();
+        try {
+            // Discovery must not hand out docIDs after the count is taken
+            discoverer.join();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        stopTime = System.nanoTime();
+    }
+
+    /**
+     *  Returns an executor that reads each batch on a virtual thread of its
+     *  own on JVMs that have them (Java 21 and later), and on a fixed pool
+     *  of platform threads otherwise.
+     */
+    static ExecutorService readExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+        } catch ( ReflectiveOperationException | RuntimeException e ) {
+            return Executors.newFixedThreadPool( IO_THREADS, r -> {
+                    Thread t = new Thread( r, "indexer-io" );
+                    t.setDaemon( true );
+                    return t;
+                });
+        }
+    }
+
+
+    /** Discovers the files below f in sorted order, a batch at a time. */
+    private void discover( File f ) throws InterruptedException {
+        walked = System.nanoTime();
+        ArrayList<File> files = new ArrayList<File>( Indexer.BATCH_SIZE );
+        int[] counts = new int[2];
+        walk( f, files, counts );
+        if ( !files.isEmpty() ) {
+            emit( files, counts );
+        }
+        totalFiles = counts[1];
+        totalBatches = counts[0];
+    }
+
+    private void walk( File f, ArrayList<File> files, int[] counts ) throws InterruptedException {
+        // do not try to index files that cannot be read
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                // an IO error could occur
+                if ( fs != null ) {
+                    Arrays.sort( fs );
+                    for ( int i=0; i<fs.length; i++ ) {
+                        walk( new File( f, fs[i] ), files, counts );
+                    }
+                }
+            } else {
+                files.add( f );
+                if ( files.size() == Indexer.BATCH_SIZE ) {
+                    emit( new ArrayList<File>( files ), counts );
+                    files.clear();
+                }
+            }
+        }
+    }
+
+    /** When discovery last resumed walking, after handing on a batch. */
+    private long walked;
+
+    /** Hands a batch of files to the readers as soon as a buffer is free. */
+    private void emit( ArrayList<File> files, int[] counts ) throws InterruptedException {
+        discover.done( walked, files.size() );
+        discover.sample();
+        Indexer.Batch batch = new Indexer.Batch( files, firstDocID + counts[1] );
+        batch.bytes = buffers.take();
+        counts[0]++;
+        counts[1] += files.size();
+        dispatched = counts[1];
+        toRead.put( batch );
+        walked = System.nanoTime();
+    }
+
+    /** Reads every batch in a task of its own. */
+    private void dispatchReads() throws InterruptedException {
+        while ( true ) {
+            Indexer.Batch batch = toRead.take();
+            read.sample();
+            io.execute( () -> {
+                    try {
+                        long start = System.nanoTime();
+                        batch.read( batch.bytes );
+                        read.done( start, batch.files.size() );
+                        toTokenize.put( batch );
+                    } catch ( InterruptedException e ) {
+                        // The pipeline is stopping
+                    } catch ( Throwable e ) {
+                        fail( e );
+                    }
+                });
+        }
+    }
+
+    private void tokenize() throws InterruptedException {
+        while ( true ) {
+            Indexer.Batch batch = toTokenize.take();
+            tokenize.sample();
+            long start = System.nanoTime();
+            batch.tokenize( patterns_file );
+            tokenize.done( start, batch.files.size() );
+            toInvert.put( batch );
+        }
+    }
+
+    /**
+     *  Takes the tokenized batches, and hands them on in docID order until
+     *  all discovered batches have been handed on.
+     */
+    private void invert() throws Exception {
+        TreeMap<Integer,Indexer.Batch> waiting = new TreeMap<Integer,Indexer.Batch>();
+        int next = firstDocID;
+        int inverted = 0;
+        long held = 0;
+        while ( totalBatches < 0 || inverted < totalBatches ) {
+            Indexer.Batch batch = toInvert.poll( 100, TimeUnit.MILLISECONDS );
+            if ( failure != null ) {
+                return;
+            }
+            if ( batch == null ) {
+                continue;
+            }
+            invert.sample();
+            waiting.put( batch.firstDocID, batch );
+            while (( batch = waiting.remove( next )) != null ) {
+                long start = System.nanoTime();
+                held += split( batch );
+                next += batch.files.size();
+                inverted++;
+                invert.done( start, batch.files.size() );
+                if ( ( next - firstDocID ) / 1000 != ( next - firstDocID - batch.files.size() ) / 1000 ) {
+                    System.err.println( "Indexed " + next + " files" );
+                }
+                if ( held > DRAIN_BYTES ) {
+                    drain();
+                    held = 0;
+                }
+            }
+        }
+        drain();
+    }
+
+    /**
+     *  Registers the documents of a batch and splits its postings among the
+     *  shard writers. Returns the approximate number of bytes of postings.
+     */
+    private long split( Indexer.Batch batch ) throws InterruptedException {
+        for ( int i=0; i<batch.files.size(); i++ ) {
+            if ( batch.lengths[i] >= 0 ) {
+                int docID = batch.firstDocID + i;
+                Index.docNames.put( docID, batch.files.get( i ).getPath() );
+                Index.docLengths.put( docID, batch.lengths[i] );
+            }
+        }
+        Part[] parts = new Part[shards];
+        long bytes = 0;
+        for ( int id=0; id<batch.termStrings.length; id++ ) {
+            String term = batch.termStrings[id];
+            PostingsList pl = batch.lists.get( id );
+            int shard = ( term.hashCode() & 0x7fffffff ) % shards;
+            if ( parts[shard] == null ) {
+                parts[shard] = new Part();
+            }
+            parts[shard].terms.add( term );
+            parts[shard].lists.add( pl );
+            bytes += 8L * pl.size() + 4L * pl.numPositions();
+        }
+        for ( int i=0; i<shards; i++ ) {
+            if ( parts[i] != null ) {
+                toWrite.get( i ).put( parts[i] );
+            }
+        }
+        ByteBuffer buffer = batch.bytes;
+        batch.bytes = null;
+        // A batch that outgrew its buffer returns one of the initial size
+        buffers.put( buffer.capacity() > BUFFER_SIZE ? ByteBuffer.allocate( BUFFER_SIZE ) : buffer );
+        return bytes;
+    }
+
+    /** Appends the partial lists of the terms of one shard. */
+    private void write( int shard ) throws InterruptedException {
+        ArrayBlockingQueue<Object> queue = toWrite.get( shard );
+        HashMap<String,PostingsList> lists = new HashMap<String,PostingsList>();
+        while ( true ) {
+            Object message = queue.take();
+            write.sample();
+            if ( message instanceof Drain ) {
+                Drain drain = (Drain)message;
+                drain.lists.set( shard, lists );
+                lists = new HashMap<String,PostingsList>();
+                drain.done.countDown();
+                continue;
+            }
+            long start = System.nanoTime();
+            Part part = (Part)message;
+            for ( int i=0; i<part.terms.size(); i++ ) {
+                PostingsList pl = lists.get( part.terms.get( i ));
+                if ( pl == null ) {
+                    lists.put( part.terms.get( i ), part.lists.get( i ));
+                } else {
+                    pl.append( part.lists.get( i ));
+                }
+            }
+            write.done( start, part.terms.size() );
+        }
+    }
+
+    /** Merges the lists of all shard writers into the index, and their terms into the k-gram index. */
+    private void drain() throws Exception {
+        Drain drain = new Drain( shards );
+        for ( ArrayBlockingQueue<Object> queue : toWrite ) {
+            queue.put( drain );
+        }
+        await( drain.done );
+        long start = System.nanoTime();
+        long terms = 0;
+        for ( HashMap<String,PostingsList> lists : drain.lists ) {
+            for ( Map.Entry<String,PostingsList> e : lists.entrySet() ) {
+                index.merge( e.getKey(), e.getValue() );
+            }
+            terms += lists.size();
+        }
+        merge.done( start, terms );
+        if ( kgIndex != null ) {
+            start = System.nanoTime();
+            for ( HashMap<String,PostingsList> lists : drain.lists ) {
+                for ( String term : lists.keySet() ) {
+                    kgIndex.insert( term );
+                }
+            }
+            kgram.done( start, terms );
+        }
+    }
+
+    /** Waits for a latch, unless a stage fails. */
+    private void await( CountDownLatch latch ) throws Exception {
+        while ( !latch.await( 100, TimeUnit.MILLISECONDS )) {
+            if ( failure != null ) {
+                throw new Exception( "Indexing failed", failure );
+            }
+        }
+    }
+}
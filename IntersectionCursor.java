@@ -0,0 +1,68 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Arrays;
+
+
+/**
+ *   A cursor over the documents that are in all of several cursors.
+ *
+ *   The cursors are ordered by size, and zig-zag like in
+ *   Searcher.intersect: the shortest one proposes a document, and every
+ *   other cursor is advanced to it, which skips the documents that some
+ *   cursor does not have without reading them.
+ */
+public class IntersectionCursor extends PostingsCursor {
+
+    /** The cursors, shortest first. */
+    final PostingsCursor[] cursors;
+
+    /** The current docID. */
+    int docID = -1;
+
+
+    /** Creates the intersection of cursors that have not been moved yet. */
+    public IntersectionCursor( PostingsCursor[] cursors ) {
+        this.cursors = cursors.clone();
+        Arrays.sort( this.cursors, ( a, b ) -> Integer.compare( a.size(), b.size() ));
+    }
+
+
+    public int docID() {
+        return docID;
+    }
+
+    public int nextDoc() {
+        return docID == NO_MORE_DOCS ? docID : advance( docID + 1 );
+    }
+
+    public int advance( int target ) {
+        if ( docID < target ) {
+            docID = Searcher.align( cursors, target );
+        }
+        return docID;
+    }
+
+    /** Returns the sum of the term frequencies of the cursors. */
+    public int tf() {
+        int tf = 0;
+        for ( PostingsCursor c : cursors ) {
+            tf += c.tf();
+        }
+        return tf;
+    }
+
+    /** Positions are not defined for an intersection. */
+    public int position( int j ) {
+        throw new UnsupportedOperationException( "An intersection has no positions" );
+    }
+
+    /** Returns the size of the shortest cursor, which bounds the number of documents. */
+    public int size() {
+        return cursors[0].size();
+    }
+}
@@ -12,75 +12,155 @@ import java.util.*;
 import java.nio.charset.StandardCharsets;
 
 
+/**
+ *   Maps each k-gram to the IDs of the terms that contain it.
+ *
+ *   The terms are kept in a TermDictionary, which may be the dictionary of
+ *   a HashedIndex so that each term is stored only once. The k-grams are
+ *   kept in a dictionary of their own, and the term IDs of each k-gram in
+ *   a sorted int array.
+ */
 public class KGramIndex {
 
-    /** Mapping from term ids to actual term strings */
-    HashMap<Integer,String> id2term = new HashMap<Integer,String>();
+    /** The terms, and their IDs */
+    final TermDictionary terms;
 
-    /** Mapping from term strings to term ids */
-    HashMap<String,Integer> term2id = new HashMap<String,Integer>();
+    /** The k-grams, and their IDs */
+    final TermDictionary kgrams = new TermDictionary();
 
-    /** Index from k-grams to list of term ids that contain the k-gram */
-    HashMap<String,List<KGramPostingsEntry>> index = new HashMap<String,List<KGramPostingsEntry>>();
+    /** The sorted IDs of the terms that contain each k-gram, by k-gram ID */
+    int[][] postings = new int[64][];
 
-    /** The ID of the last processed term */
-    int lastTermID = -1;
+    /** The number of term IDs of each k-gram */
+    int[] postingsSize = new int[64];
+
+    /** The IDs of the terms whose k-grams have been inserted */
+    final BitSet inserted = new BitSet();
 
     /** Number of symbols to form a K-gram */
     int K = 3;
 
     public KGramIndex(int k) {
+        this(k, new TermDictionary());
+    }
+
+    /** Creates a k-gram index over the terms of a dictionary, e.g. that of a HashedIndex */
+    public KGramIndex(int k, TermDictionary terms) {
         K = k;
+        this.terms = terms;
         if (k <= 0) {
             System.err.println("The K-gram index can't be constructed for a negative K value");
             System.exit(1);
         }
     }
 
-    /** Generate the ID for an unknown term */
-    private int generateTermID() {
-        return ++lastTermID;
-    }
-
     public int getK() {
         return K;
     }
 
+    /** Returns the dictionary of the terms */
+    public TermDictionary getTermDictionary() {
+        return terms;
+    }
+
 
     /**
      *  Get intersection of two postings lists
      */
     private List<KGramPostingsEntry> intersect(List<KGramPostingsEntry> p1, List<KGramPostingsEntry> p2) {
-        // 
-        // YOUR CODE HERE
-        //
-        return null;
+        ArrayList<KGramPostingsEntry> result = new ArrayList<KGramPostingsEntry>();
+        if (p1 == null || p2 == null) {
+            return result;
+        }
+        int i = 0, j = 0;
+        while (i < p1.size() && j < p2.size()) {
+            int id1 = p1.get(i).tokenID;
+            int id2 = p2.get(j).tokenID;
+            if (id1 == id2) {
+                result.add(p1.get(i));
+                i++;
+                j++;
+            } else if (id1 < id2) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return result;
     }
 
 
     /** Inserts all k-grams from a token into the index. */
     public void insert( String token ) {
-        //
-        // YOUR CODE HERE
-        //
+        insert( terms.add( token ));
+    }
+
+    /**
+     *  Inserts all k-grams of a term, given by its ID in the dictionary of
+     *  this index. A term is only inserted once.
+     */
+    public void insert( int termID ) {
+        if ( inserted.get( termID )) {
+            return;
+        }
+        inserted.set( termID );
+        int length = terms.length( termID );
+        char[] padded = new char[length + 2];
+        padded[0] = '^';
+        System.arraycopy( terms.chars, terms.offsets[termID], padded, 1, length );
+        padded[length + 1] = '$';
+        for ( int i=0; i+K<=padded.length; i++ ) {
+            add( kgrams.add( padded, i, K ), termID );
+        }
     }
 
     /** Get postings for the given k-gram */
     public List<KGramPostingsEntry> getPostings(String kgram) {
-        //
-        // YOUR CODE HERE
-        //
-        return null;
+        int id = kgrams.find(kgram);
+        if (id < 0) {
+            return null;
+        }
+        ArrayList<KGramPostingsEntry> list = new ArrayList<KGramPostingsEntry>(postingsSize[id]);
+        for (int i = 0; i < postingsSize[id]; i++) {
+            list.add(new KGramPostingsEntry(postings[id][i]));
+        }
+        return list;
     }
 
     /** Get id of a term */
     public Integer getIDByTerm(String term) {
-        return term2id.get(term);
+        int id = terms.find(term);
+        return id < 0 ? null : id;
     }
 
     /** Get a term by the given id */
     public String getTermByID(Integer id) {
-        return id2term.get(id);
+        return id == null || id < 0 || id >= terms.size() ? null : terms.term(id);
+    }
+
+    /** Adds a term ID to the sorted IDs of a k-gram, unless it is there */
+    private void add( int kgramID, int termID ) {
+        if ( kgramID == postings.length ) {
+            postings = Arrays.copyOf( postings, 2 * kgramID );
+            postingsSize = Arrays.copyOf( postingsSize, 2 * kgramID );
+        }
+        int[] ids = postings[kgramID];
+        int n = postingsSize[kgramID];
+        if ( ids == null ) {
+            ids = postings[kgramID] = new int[4];
+        }
+        // Terms are mostly inserted in the order of their IDs
+        int i = n > 0 && ids[n - 1] >= termID ? Arrays.binarySearch( ids, 0, n, termID ) : -n - 1;
+        if ( i >= 0 ) {
+            return;
+        }
+        i = -i - 1;
+        if ( n == ids.length ) {
+            ids = postings[kgramID] = Arrays.copyOf( ids, 2 * n );
+        }
+        System.arraycopy( ids, i, ids, i + 1, n - i );
+        ids[i] = termID;
+        postingsSize[kgramID] = n + 1;
     }
 
     private static HashMap<String,String> decodeArgs( String[] args ) {
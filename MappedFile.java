@@ -0,0 +1,87 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ *   A read-only memory mapping of a file.
+ *
+ *   A MappedByteBuffer can address at most 2 GB, so larger files are
+ *   mapped in chunks. Consecutive chunks overlap by OVERLAP bytes, so that
+ *   small records (such as dictionary entries) never straddle two chunks.
+ *   All reads use absolute positions and can be done from many threads.
+ */
+public class MappedFile {
+
+    /** Distance between the starts of two consecutive chunks. */
+    static final long CHUNK_SIZE = 1L << 30;
+
+    /** Number of bytes each chunk extends into the next one. */
+    static final int OVERLAP = 1 << 16;
+
+    /** The mapped chunks. */
+    final MappedByteBuffer[] chunks;
+
+    /** The length of the file when it was mapped. */
+    final long length;
+
+
+    /**
+     *  Maps the whole file. The mapping stays valid after the file is closed.
+     */
+    public MappedFile( File file ) throws IOException {
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+            length = channel.size();
+            chunks = new MappedByteBuffer[(int)(( length + CHUNK_SIZE - 1 ) / CHUNK_SIZE )];
+            for ( int i=0; i<chunks.length; i++ ) {
+                long start = i * CHUNK_SIZE;
+                long size = Math.min( CHUNK_SIZE + OVERLAP, length - start );
+                chunks[i] = channel.map( FileChannel.MapMode.READ_ONLY, start, size );
+            }
+        }
+    }
+
+
+    /** Returns the length of the mapped file. */
+    public long length() {
+        return length;
+    }
+
+
+    /**
+     *  Returns a buffer whose remaining bytes are the <code>size</code> bytes
+     *  starting at <code>ptr</code>. The buffer is a view of the mapping,
+     *  unless the bytes straddle two chunks, in which case they are copied.
+     */
+    public ByteBuffer slice( long ptr, int size ) {
+        int c = (int)( ptr / CHUNK_SIZE );
+        int offset = (int)( ptr % CHUNK_SIZE );
+        if ( offset + size <= chunks[c].capacity() ) {
+            ByteBuffer buf = chunks[c].duplicate();
+            buf.limit( offset + size );
+            buf.position( offset );
+            return buf;
+        }
+        byte[] data = new byte[size];
+        int done = 0;
+        while ( done < size ) {
+            ByteBuffer buf = chunks[c].duplicate();
+            buf.position( offset );
+            int n = Math.min( size - done, (int)Math.min( buf.remaining(), CHUNK_SIZE - offset ));
+            buf.get( data, done, n );
+            done += n;
+            c++;
+            offset = 0;
+        }
+        return ByteBuffer.wrap( data );
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+
+
+/**
+ *  Indexes a directory into a PersistentHashedIndex with a tiny memory
+ *  budget, so that it is flushed to many blocks, and checks every postings
+ *  list against a HashedIndex of the same directory. The persistent index
+ *  is written to the directory "index", which must exist.
+ */
+public class MemoryBudgetTest {
+
+    String filename = null;
+    long budget = 300000;
+    int threads = 1;
+
+
+    /** Returns the number of terms whose postings differ. */
+    public int run() {
+        HashedIndex memory = new HashedIndex();
+        new Indexer( memory, null, null, threads ).processFiles( new File( filename ), true );
+        memory.cleanup();
+
+        Index.docNames.clear();
+        Index.docLengths.clear();
+        PersistentHashedIndex persistent = new PersistentHashedIndex();
+        persistent.setMemoryBudget( budget );
+        new Indexer( persistent, null, null, threads ).processFiles( new File( filename ), true );
+        persistent.cleanup();
+
+        TermDictionary terms = memory.getTermDictionary();
+        int bad = 0;
+        for ( int id=0; id<terms.size(); id++ ) {
+            String term = terms.term( id );
+            PostingsList expected = memory.getPostings( term );
+            PostingsList actual = persistent.getPostings( term );
+            if ( expected != null && !same( expected, actual )) {
+                System.err.println( "Postings differ for " + term );
+                bad++;
+            }
+        }
+        System.err.println( "Compared " + terms.size() + " terms over " + persistent.blocks + " blocks, " + bad + " differ." );
+        return bad;
+    }
+
+
+    /** Returns true if two postings lists have the same docIDs and positions. */
+    static boolean same( PostingsList a, PostingsList b ) {
+        if ( b == null || a.size() != b.size() || a.numPositions() != b.numPositions() ) {
+            return false;
+        }
+        for ( int i=0; i<a.size(); i++ ) {
+            if ( a.docID( i ) != b.docID( i ) || a.tf( i ) != b.tf( i )) {
+                return false;
+            }
+            for ( int j=0; j<a.tf( i ); j++ ) {
+                if ( a.position( a.positionsStart( i ) + j ) != b.position( b.positionsStart( i ) + j )) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    /** Prints usage information. */
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -b <bytes> : memory budget of the persistent index (optional, default 300000)" );
+        System.err.println( "  -t <threads> : number of indexing threads (optional, default 1)" );
+        System.err.println( "  -f <filename> : name of file or directory to be indexed (mandatory)" );
+    }
+
+
+    /** Main */
+    public static void main( String[] args ) {
+        MemoryBudgetTest t = new MemoryBudgetTest();
+        int i=0;
+        while ( i<args.length ) {
+            if ( i+1 < args.length && args[i].equals( "-f" )) {
+                t.filename = args[i+1];
+            } else if ( i+1 < args.length && args[i].equals( "-b" )) {
+                t.budget = Long.parseLong( args[i+1] );
+            } else if ( i+1 < args.length && args[i].equals( "-t" )) {
+                t.threads = Integer.parseInt( args[i+1] );
+            } else {
+                System.err.println( "Unrecognized parameter: " + args[i] );
+                printHelpMessage();
+                return;
+            }
+            i += 2;
+        }
+        if ( t.filename == null ) {
+            printHelpMessage();
+            return;
+        }
+        if ( t.run() > 0 ) {
+            System.exit( 1 );
+        }
+    }
+}
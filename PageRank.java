@@ -0,0 +1,569 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+
+/**
+ *   Computes the PageRank of the nodes of a link graph.
+ *
+ *   The graph is read from a file with one line per node that has links,
+ *   "from;to1,to2,...", and kept in compressed sparse row form: the links
+ *   of all nodes one run after the other in an int array, with the index
+ *   of each node's first link in another. Repeated links from a node count
+ *   once.
+ *
+ *   The ranks are computed either exactly by power iteration, where each
+ *   iteration is split over the nodes with fork-join, or approximately by
+ *   Monte Carlo random walks, which is much faster for a fresh estimate.
+ */
+public class PageRank {
+
+    /** Probability that the surfer gets bored and jumps to a random node. */
+    public static final double BORED = 0.15;
+
+    /** Power iteration stops when the ranks change less than this in total. */
+    public static final double EPSILON = 0.0001;
+
+    /** Power iteration stops after this many iterations at the latest. */
+    public static final int MAX_NUMBER_OF_STEPS = 1000;
+
+    /** Ranges of nodes up to this size are not split further between threads. */
+    static final int SPLIT = 1 << 14;
+
+    /** The names of the nodes, indexed by node number. */
+    String[] names;
+
+    /** Number of nodes and of (distinct) links. */
+    int numNodes;
+    int numLinks;
+
+    /** The links from each node: outLinks[outStart[i]] up to outLinks[outStart[i+1]]. */
+    int[] outStart;
+    int[] outLinks;
+
+    /** The links to each node: inLinks[inStart[i]] up to inLinks[inStart[i+1]]. */
+    int[] inStart;
+    int[] inLinks;
+
+    /**
+     *  The node numbers by the hash of their names, with -1 for free slots,
+     *  while the graph is read. Names are looked up in the line they occur
+     *  in, so only new names are copied out of it.
+     */
+    int[] table;
+
+    /** The hashes of the names in the table, compared before the names themselves. */
+    int[] hashes;
+
+    /** Number of names in the table. */
+    int tableSize = 0;
+
+    /**
+     *  The node numbers plus one by numeric name, for names that are small
+     *  decimal numbers, as in most link files. They are found without
+     *  hashing or comparing strings. The array is kept within a few times
+     *  the number of nodes, and larger numbers are hashed like other names.
+     */
+    int[] byNumber;
+
+    /** Number of iterations of the last power iteration. */
+    int iterations = 0;
+
+    /** Total change of the ranks in the last iteration of the last power iteration. */
+    double residual = 0;
+
+
+    /**
+     *  Reads the link graph from a file.
+     */
+    public PageRank( String linksFile ) throws IOException {
+        names = new String[1024];
+        table = new int[1 << 12];
+        hashes = new int[table.length];
+        byNumber = new int[1024];
+        Arrays.fill( table, -1 );
+        int[] from = new int[1024];
+        int[] to = new int[1024];
+        int n = 0;
+        try ( BufferedReader reader = new BufferedReader( new FileReader( linksFile ))) {
+            String line;
+            while (( line = reader.readLine()) != null ) {
+                int semi = line.indexOf( ';' );
+                if ( semi < 0 ) {
+                    continue;
+                }
+                int source = node( line, 0, semi );
+                int start = semi + 1;
+                while ( start < line.length() ) {
+                    int end = line.indexOf( ',', start );
+                    if ( end < 0 ) {
+                        end = line.length();
+                    }
+                    int target = node( line, start, end );
+                    if ( target >= 0 ) {
+                        if ( n == from.length ) {
+                            from = Arrays.copyOf( from, 2 * n );
+                            to = Arrays.copyOf( to, 2 * n );
+                        }
+                        from[n] = source;
+                        to[n] = target;
+                        n++;
+                    }
+                    start = end + 1;
+                }
+            }
+        }
+        names = Arrays.copyOf( names, numNodes );
+        table = null;
+        hashes = null;
+        byNumber = null;
+        outStart = new int[numNodes + 1];
+        outLinks = sortedRows( from, to, n, outStart );
+        // Drop repeated links from the same node
+        int k = 0;
+        for ( int i=0; i<numNodes; i++ ) {
+            int start = k;
+            for ( int j=outStart[i]; j<outStart[i+1]; j++ ) {
+                if ( k == start || outLinks[k-1] != outLinks[j] ) {
+                    outLinks[k++] = outLinks[j];
+                }
+            }
+            outStart[i] = start;
+        }
+        outStart[numNodes] = k;
+        numLinks = k;
+        outLinks = Arrays.copyOf( outLinks, k );
+        for ( int i=0; i<numNodes; i++ ) {
+            for ( int j=outStart[i]; j<outStart[i+1]; j++ ) {
+                from[j] = i;
+            }
+        }
+        inStart = new int[numNodes + 1];
+        inLinks = sortedRows( outLinks, from, k, inStart );
+    }
+
+
+    /**
+     *  Computes the ranks by power iteration until they change less than
+     *  epsilon in total, or for at most maxIterations iterations. The rank
+     *  of a node without links is spread evenly over all nodes.
+     *  @return The ranks, indexed by node number.
+     */
+    public double[] powerIteration( double epsilon, int maxIterations ) {
+        final int n = numNodes;
+        final double c = 1 - BORED;
+        double[] rank = new double[n];
+        Arrays.fill( rank, 1.0 / n );
+        double[] next = new double[n];
+        double[] share = new double[n];
+        iterations = 0;
+        residual = Double.POSITIVE_INFINITY;
+        while ( iterations < maxIterations && residual >= epsilon ) {
+            final double[] r = rank;
+            final double[] s = next;
+            // Each node passes its rank on in equal shares over its links
+            double dangling = sum( 0, n, ( from, to ) -> {
+                double lost = 0;
+                for ( int i=from; i<to; i++ ) {
+                    int degree = outStart[i+1] - outStart[i];
+                    if ( degree == 0 ) {
+                        lost += r[i];
+                    } else {
+                        share[i] = r[i] / degree;
+                    }
+                }
+                return lost;
+            });
+            final double base = ( BORED + c * dangling ) / n;
+            residual = sum( 0, n, ( from, to ) -> {
+                double change = 0;
+                for ( int j=from; j<to; j++ ) {
+                    double in = 0;
+                    for ( int k=inStart[j]; k<inStart[j+1]; k++ ) {
+                        in += share[inLinks[k]];
+                    }
+                    s[j] = base + c * in;
+                    change += Math.abs( s[j] - r[j] );
+                }
+                return change;
+            });
+            next = rank;
+            rank = s;
+            iterations++;
+        }
+        return rank;
+    }
+
+    /**
+     *  Estimates the ranks by Monte Carlo simulation: walksPerNode random
+     *  walks start from every node, and each continues along a random link
+     *  until the surfer gets bored or reaches a node without links. The
+     *  rank of a node is the share of all visits that were to it.
+     *  @return The ranks, indexed by node number.
+     */
+    public double[] monteCarlo( int walksPerNode, long seed ) {
+        Map<Thread,long[]> perThread = new ConcurrentHashMap<Thread,long[]>();
+        ForkJoinPool.commonPool().invoke( new Walks( outStart, outLinks, 0, numNodes, walksPerNode, new SplittableRandom( seed ), perThread ));
+        long[] visits = new long[numNodes];
+        for ( long[] counts : perThread.values() ) {
+            for ( int i=0; i<numNodes; i++ ) {
+                visits[i] += counts[i];
+            }
+        }
+        long total = 0;
+        for ( long v : visits ) {
+            total += v;
+        }
+        double[] rank = new double[numNodes];
+        for ( int i=0; i<numNodes; i++ ) {
+            rank[i] = (double)visits[i] / total;
+        }
+        return rank;
+    }
+
+
+    /**
+     *  Returns the ranks by node name, or by the title of the node if it
+     *  has one.
+     *  @param titles The titles by node name, or null.
+     */
+    public Map<String,Double> byName( double[] rank, Map<String,String> titles ) {
+        HashMap<String,Double> scores = new HashMap<String,Double>();
+        for ( int i=0; i<numNodes; i++ ) {
+            String name = titles == null ? null : titles.get( names[i] );
+            scores.put( name == null ? names[i] : name, rank[i] );
+        }
+        return scores;
+    }
+
+    /**
+     *  Reads the titles of the nodes from a file with one "name;title" per line.
+     */
+    public static Map<String,String> readTitles( String file ) throws IOException {
+        HashMap<String,String> titles = new HashMap<String,String>();
+        try ( BufferedReader reader = new BufferedReader( new FileReader( file ))) {
+            String line;
+            while (( line = reader.readLine()) != null ) {
+                int i = line.indexOf( ';' );
+                if ( i > 0 ) {
+                    titles.put( line.substring( 0, i ), line.substring( i + 1 ));
+                }
+            }
+        }
+        return titles;
+    }
+
+    /**
+     *  Writes ranks by name to a file that PageRankScores can read.
+     */
+    public static void write( Map<String,Double> scores, String file ) throws IOException {
+        try ( PrintWriter writer = new PrintWriter( file, "UTF-8" )) {
+            for ( Map.Entry<String,Double> e : scores.entrySet() ) {
+                writer.println( e.getKey() + ";" + e.getValue() );
+            }
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Returns the number of the node named by line[from..to] without
+     *  surrounding spaces, numbering it if it is new, or -1 if the name is
+     *  empty.
+     */
+    private int node( String line, int from, int to ) {
+        while ( from < to && line.charAt( from ) == ' ' ) {
+            from++;
+        }
+        while ( to > from && line.charAt( to - 1 ) == ' ' ) {
+            to--;
+        }
+        if ( from == to ) {
+            return -1;
+        }
+        int number = number( line, from, to );
+        if ( number >= byNumber.length && number < 4L * numNodes + 1024 ) {
+            growByNumber( (int)Math.min( Math.max( number + 1L, 2L * byNumber.length ), 4L * numNodes + 1024 ));
+        }
+        if ( number >= 0 && number < byNumber.length ) {
+            if ( byNumber[number] == 0 ) {
+                byNumber[number] = newNode( line.substring( from, to )) + 1;
+            }
+            return byNumber[number] - 1;
+        }
+        int hash = 0;
+        for ( int i=from; i<to; i++ ) {
+            hash = 31 * hash + line.charAt( i );
+        }
+        int mask = table.length - 1;
+        int slot = slot( hash );
+        while ( table[slot] >= 0 ) {
+            if ( hashes[slot] == hash ) {
+                String name = names[table[slot]];
+                if ( name.length() == to - from && line.regionMatches( from, name, 0, to - from )) {
+                    return table[slot];
+                }
+            }
+            slot = ( slot + 1 ) & mask;
+        }
+        int node = newNode( line.substring( from, to ));
+        table[slot] = node;
+        hashes[slot] = hash;
+        if ( 2 * ++tableSize > table.length ) {
+            rehash();
+        }
+        return node;
+    }
+
+    /**
+     *  Returns the decimal number in line[from..to], or -1 if it is not a
+     *  number below 10^8 in its shortest form.
+     */
+    private static int number( String line, int from, int to ) {
+        if ( to - from > 8 || ( line.charAt( from ) == '0' && to - from > 1 )) {
+            return -1;
+        }
+        int number = 0;
+        for ( int i=from; i<to; i++ ) {
+            char c = line.charAt( i );
+            if ( c < '0' || c > '9' ) {
+                return -1;
+            }
+            number = 10 * number + ( c - '0' );
+        }
+        return number;
+    }
+
+    /**
+     *  Extends byNumber to the given length, moving the numeric names that
+     *  were hashed because they were too large into it.
+     */
+    private void growByNumber( int length ) {
+        int old = byNumber.length;
+        byNumber = Arrays.copyOf( byNumber, length );
+        for ( int slot=0; slot<table.length; slot++ ) {
+            if ( table[slot] >= 0 ) {
+                String name = names[table[slot]];
+                int number = number( name, 0, name.length() );
+                if ( number >= old && number < length ) {
+                    byNumber[number] = table[slot] + 1;
+                }
+            }
+        }
+    }
+
+    /** Numbers a new node. */
+    private int newNode( String name ) {
+        int node = numNodes++;
+        if ( node == names.length ) {
+            names = Arrays.copyOf( names, 2 * node );
+        }
+        names[node] = name;
+        return node;
+    }
+
+    /** Returns the slot of a hash in the table: the top bits of its product with a constant. */
+    private int slot( int hash ) {
+        return ( hash * 0x9E3779B9 ) >>> Integer.numberOfLeadingZeros( table.length ) + 1;
+    }
+
+    /** Doubles the size of the table of names. */
+    private void rehash() {
+        int[] oldTable = table;
+        int[] oldHashes = hashes;
+        table = new int[2 * oldTable.length];
+        hashes = new int[table.length];
+        Arrays.fill( table, -1 );
+        int mask = table.length - 1;
+        for ( int i=0; i<oldTable.length; i++ ) {
+            if ( oldTable[i] >= 0 ) {
+                int slot = slot( oldHashes[i] );
+                while ( table[slot] >= 0 ) {
+                    slot = ( slot + 1 ) & mask;
+                }
+                table[slot] = oldTable[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    /**
+     *  Sorts the pairs (row[i], column[i]) by row and then by column, and
+     *  returns the columns in that order. The index of the first column of
+     *  each row is stored in start.
+     */
+    private int[] sortedRows( int[] row, int[] column, int n, int[] start ) {
+        // Counting sort by column, then a stable counting sort by row
+        int[] byColumn = new int[n];
+        int[] count = new int[numNodes + 1];
+        for ( int i=0; i<n; i++ ) {
+            count[column[i] + 1]++;
+        }
+        for ( int i=0; i<numNodes; i++ ) {
+            count[i + 1] += count[i];
+        }
+        for ( int i=0; i<n; i++ ) {
+            byColumn[count[column[i]]++] = i;
+        }
+        for ( int i=0; i<n; i++ ) {
+            start[row[i] + 1]++;
+        }
+        for ( int i=0; i<numNodes; i++ ) {
+            start[i + 1] += start[i];
+        }
+        int[] next = Arrays.copyOf( start, numNodes );
+        int[] columns = new int[n];
+        for ( int i : byColumn ) {
+            columns[next[row[i]]++] = column[i];
+        }
+        return columns;
+    }
+
+
+    /** A sum over a range of nodes. */
+    interface RangeSum {
+        double sum( int from, int to );
+    }
+
+    /** Computes a sum over the nodes from..to, split in parallel fork-join tasks. */
+    static double sum( int from, int to, RangeSum f ) {
+        return ForkJoinPool.commonPool().invoke( new Sum( from, to, f ));
+    }
+
+    static class Sum extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+
+        final int from, to;
+        final RangeSum f;
+
+        Sum( int from, int to, RangeSum f ) {
+            this.from = from;
+            this.to = to;
+            this.f = f;
+        }
+
+        protected Double compute() {
+            if ( to - from <= SPLIT ) {
+                return f.sum( from, to );
+            }
+            int mid = ( from + to ) >>> 1;
+            Sum left = new Sum( from, mid, f );
+            left.fork();
+            double right = new Sum( mid, to, f ).compute();
+            return left.join() + right;
+        }
+    }
+
+    /**
+     *  Random walks from the nodes from..to, split in parallel fork-join
+     *  tasks. The visits are counted in one array per thread, which the
+     *  tasks a thread runs all add to, and which are summed at the end.
+     */
+    static class Walks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        /** The links of the graph, as in PageRank. */
+        final int[] outStart, outLinks;
+        final int numNodes;
+
+        final int from, to, walksPerNode;
+        final SplittableRandom random;
+
+        /** The visits to each node, counted by each thread. */
+        final Map<Thread,long[]> perThread;
+
+        Walks( int[] outStart, int[] outLinks, int from, int to, int walksPerNode, SplittableRandom random, Map<Thread,long[]> perThread ) {
+            this.outStart = outStart;
+            this.outLinks = outLinks;
+            this.numNodes = outStart.length - 1;
+            this.from = from;
+            this.to = to;
+            this.walksPerNode = walksPerNode;
+            this.random = random;
+            this.perThread = perThread;
+        }
+
+        protected void compute() {
+            if ( to - from > SPLIT ) {
+                int mid = ( from + to ) >>> 1;
+                Walks left = new Walks( outStart, outLinks, from, mid, walksPerNode, random.split(), perThread );
+                Walks right = new Walks( outStart, outLinks, mid, to, walksPerNode, random, perThread );
+                invokeAll( left, right );
+                return;
+            }
+            long[] visits = perThread.computeIfAbsent( Thread.currentThread(), t -> new long[numNodes] );
+            for ( int start=from; start<to; start++ ) {
+                for ( int w=0; w<walksPerNode; w++ ) {
+                    int i = start;
+                    while ( true ) {
+                        visits[i]++;
+                        int degree = outStart[i+1] - outStart[i];
+                        if ( degree == 0 || random.nextDouble() < BORED ) {
+                            break;
+                        }
+                        i = outLinks[outStart[i] + random.nextInt( degree )];
+                    }
+                }
+            }
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Computes the PageRank of a link graph and writes it to a file.
+     *  Usage: PageRank linksfile [-t titlesfile] [-o outfile] [-mc walks per node]
+     */
+    public static void main( String[] args ) throws IOException {
+        if ( args.length < 1 ) {
+            System.err.println( "Usage: PageRank linksfile [-t titlesfile] [-o outfile] [-mc walks per node]" );
+            return;
+        }
+        String titlesFile = null, outFile = "pagerank";
+        int walks = 0;
+        for ( int i=1; i+1<args.length; i+=2 ) {
+            if ( "-t".equals( args[i] )) {
+                titlesFile = args[i+1];
+            } else if ( "-o".equals( args[i] )) {
+                outFile = args[i+1];
+            } else if ( "-mc".equals( args[i] )) {
+                walks = Integer.parseInt( args[i+1] );
+            } else {
+                System.err.println( "Unknown option: " + args[i] );
+            }
+        }
+        long startTime = System.currentTimeMillis();
+        PageRank pr = new PageRank( args[0] );
+        long readTime = System.currentTimeMillis();
+        System.err.printf( "Read %d nodes and %d links in %.1f seconds%n", pr.numNodes, pr.numLinks, ( readTime - startTime ) / 1000.0 );
+        double[] rank;
+        if ( walks > 0 ) {
+            rank = pr.monteCarlo( walks, startTime );
+            System.err.printf( "%d random walks per node in %.1f seconds%n", walks, ( System.currentTimeMillis() - readTime ) / 1000.0 );
+        } else {
+            rank = pr.powerIteration( EPSILON, MAX_NUMBER_OF_STEPS );
+            System.err.printf( "%d iterations in %.1f seconds, residual %.2e%n", pr.iterations, ( System.currentTimeMillis() - readTime ) / 1000.0, pr.residual );
+        }
+        write( pr.byName( rank, titlesFile == null ? null : readTitles( titlesFile )), outFile );
+    }
+}
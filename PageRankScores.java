@@ -0,0 +1,205 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ *   The PageRank scores of the documents, as an array indexed by docID.
+ *
+ *   The scores are stored under the names of the documents without their
+ *   paths, one "name;score" per line. The file is read once, the first
+ *   time a score is needed, and the names are resolved to docIDs then.
+ *   They are resolved again only when documents have been added to the
+ *   index, so a search just reads an array. Documents without a score
+ *   get 0.
+ */
+public class PageRankScores {
+
+    /** The file the scores are read from, or null if they are only set. */
+    final String file;
+
+    /** The scores by document name, or null until the file has been read. */
+    volatile Map<String,Double> byName = null;
+
+    /** Number of times the scores have been set. */
+    volatile long version = 0;
+
+    /** The scores resolved to docIDs, or null if they must be resolved again. */
+    volatile Resolved resolved = null;
+
+
+    /** Creates a store whose scores will be read from the given file. */
+    public PageRankScores( String file ) {
+        this.file = file;
+    }
+
+
+    /**
+     *  Replaces all scores, e.g. with freshly computed ones.
+     *  @param scores The scores by document name without its path.
+     */
+    public synchronized void set( Map<String,Double> scores ) {
+        byName = scores;
+        resolved = null;
+        version++;
+    }
+
+    /** Returns a number that grows each time the scores are set. */
+    public long version() {
+        return version;
+    }
+
+    /**
+     *  Returns the scores resolved to docIDs for the documents in the index
+     *  now. One query should use one of them throughout.
+     */
+    public Resolved resolved() {
+        Resolved r = resolved;
+        if ( r != null && r.numDocs == Index.docNames.size() ) {
+            return r;
+        }
+        synchronized ( this ) {
+            int n = Index.docNames.size();
+            if ( resolved == null || resolved.numDocs != n ) {
+                if ( byName == null ) {
+                    byName = read();
+                }
+                resolved = new Resolved( resolve( byName ), n );
+            }
+            return resolved;
+        }
+    }
+
+    /**
+     *  Returns the scores indexed by docID. The array must not be modified,
+     *  and docIDs of documents added later may be beyond its end.
+     */
+    public double[] scores() {
+        return resolved().scores;
+    }
+
+    /** Returns the score of a document. */
+    public double get( int docID ) {
+        double[] scores = scores();
+        return docID < scores.length ? scores[docID] : 0;
+    }
+
+
+    /**
+     *  The scores of the documents in the index at one point, by docID,
+     *  together with the largest score of each block of BLOCK docIDs and of
+     *  every power-of-two run of blocks. Ranked search uses them to bound
+     *  the score of any range of docIDs in constant time.
+     */
+    public static class Resolved {
+
+        /** Number of docIDs per block. */
+        static final int BLOCK = 64;
+
+        /** The scores by docID. */
+        public final double[] scores;
+
+        /** The number of documents in the index when the scores were resolved. */
+        final int numDocs;
+
+        /** maxima[k][b] is the largest score in the blocks b up to b + 2^k. */
+        final double[][] maxima;
+
+        Resolved( double[] scores, int numDocs ) {
+            this.scores = scores;
+            this.numDocs = numDocs;
+            int blocks = ( scores.length + BLOCK - 1 ) / BLOCK;
+            int levels = blocks == 0 ? 0 : 32 - Integer.numberOfLeadingZeros( blocks );
+            maxima = new double[levels][];
+            if ( levels > 0 ) {
+                maxima[0] = new double[blocks];
+                for ( int i=0; i<scores.length; i++ ) {
+                    maxima[0][i / BLOCK] = Math.max( maxima[0][i / BLOCK], scores[i] );
+                }
+            }
+            for ( int k=1; k<levels; k++ ) {
+                int half = 1 << ( k - 1 );
+                maxima[k] = new double[blocks - 2 * half + 1];
+                for ( int b=0; b<maxima[k].length; b++ ) {
+                    maxima[k][b] = Math.max( maxima[k-1][b], maxima[k-1][b + half] );
+                }
+            }
+        }
+
+        /**
+         *  Returns an upper bound of the scores of the docIDs from and up to
+         *  (but not including) to. Documents without a score count as 0.
+         */
+        public double max( int from, int to ) {
+            to = Math.min( to, scores.length );
+            if ( from >= to ) {
+                return 0;
+            }
+            int first = from / BLOCK;
+            int last = ( to - 1 ) / BLOCK;
+            int k = 31 - Integer.numberOfLeadingZeros( last - first + 1 );
+            return Math.max( maxima[k][first], maxima[k][last - ( 1 << k ) + 1] );
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Returns the name a document is scored under: its path without the
+     *  directories.
+     */
+    public static String name( String path ) {
+        return path.substring( path.lastIndexOf( '/' ) + 1 );
+    }
+
+    /** Looks up the score of every document by its name. */
+    private static double[] resolve( Map<String,Double> scores ) {
+        int n = 0;
+        for ( int docID : Index.docNames.keySet() ) {
+            n = Math.max( n, docID + 1 );
+        }
+        double[] byDocID = new double[n];
+        for ( Map.Entry<Integer,String> e : Index.docNames.entrySet() ) {
+            Double score = scores.get( name( e.getValue() ));
+            if ( score != null && e.getKey() < n ) {
+                byDocID[e.getKey()] = score;
+            }
+        }
+        return byDocID;
+    }
+
+    /** Reads the scores from the file, skipping malformed lines, or returns none if it cannot be read. */
+    private Map<String,Double> read() {
+        HashMap<String,Double> scores = new HashMap<String,Double>();
+        if ( file == null ) {
+            return scores;
+        }
+        try ( BufferedReader reader = new BufferedReader( new FileReader( file ))) {
+            String line;
+            while (( line = reader.readLine()) != null ) {
+                int i = line.indexOf( ';' );
+                if ( i > 0 ) {
+                    try {
+                        scores.put( line.substring( 0, i ), Double.valueOf( line.substring( i + 1 ).trim() ));
+                    } catch ( NumberFormatException e ) {
+                        System.err.println( "Skipping malformed pagerank line: " + line );
+                    }
+                }
+            }
+        } catch ( IOException e ) {
+            System.err.println( "Could not read the pageranks from " + file + ": " + e.getMessage() );
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/**
+ *   Finds non-standard words (e-mail addresses, dates, etc.) in tokens,
+ *   with the regular expressions of a patterns file.
+ *
+ *   The file is read and compiled once per process, and the compiled
+ *   patterns are shared by all tokenizers on all threads. The patterns are
+ *   combined into one alternation, so a single search finds the leftmost
+ *   match of any of them; at the same position, the pattern that comes
+ *   first in the file wins. Patterns with back references cannot be
+ *   combined, since their group numbers would change, and are then
+ *   searched one after another for the same result.
+ *
+ *   Words recur all the time, so each thread also remembers where the
+ *   patterns matched in the last MEMO_SIZE short tokens it has seen.
+ */
+public class PatternMatcher {
+
+    /** The number of tokens whose matches a thread remembers. */
+    static final int MEMO_SIZE = 1 << 18;
+
+    /** Tokens longer than this are always searched, since they rarely recur. */
+    static final int MEMO_MAX_LENGTH = 32;
+
+    /** Finds the back references of a regular expression. */
+    private static final Pattern BACK_REFERENCE = Pattern.compile( "\\\\([1-9]|k<)" );
+
+    /** The compiled patterns by file name. */
+    private static final ConcurrentHashMap<String,PatternMatcher> compiled = new ConcurrentHashMap<String,PatternMatcher>();
+
+    /** All patterns as one alternation, or null if they cannot be combined. */
+    final Pattern combined;
+
+    /** The patterns in the order of the file. */
+    final Pattern[] patterns;
+
+    /** The matches remembered by each thread. */
+    private final ThreadLocal<Memo> memos = ThreadLocal.withInitial( Memo::new );
+
+
+    /**
+     *  Returns the compiled patterns of a file, reading it the first time.
+     *  A file that cannot be read, or a malformed pattern, is reported once
+     *  and leaves out the patterns concerned.
+     */
+    public static PatternMatcher forFile( String filename ) {
+        return compiled.computeIfAbsent( filename, f -> new PatternMatcher( read( f )));
+    }
+
+    /** Compiles the patterns given as regular expressions. */
+    public PatternMatcher( ArrayList<String> regexes ) {
+        patterns = new Pattern[regexes.size()];
+        StringBuilder alternation = new StringBuilder();
+        boolean combinable = true;
+        for ( int i=0; i<patterns.length; i++ ) {
+            patterns[i] = Pattern.compile( regexes.get( i ));
+            combinable &= !BACK_REFERENCE.matcher( regexes.get( i )).find();
+            alternation.append( i > 0 ? "|" : "" ).append( "(?:" ).append( regexes.get( i )).append( ")" );
+        }
+        combined = combinable && patterns.length > 0 ? Pattern.compile( alternation.toString() ) : null;
+    }
+
+
+    /** Returns a new matcher over these patterns, for use by one thread. */
+    public Finder finder() {
+        return new Finder();
+    }
+
+
+    /**
+     *  Searches tokens for the patterns. A finder reuses its matchers from
+     *  token to token, so it must not be shared between threads.
+     */
+    public class Finder {
+
+        /** The token being searched. */
+        final Tokenizer.CharView text = new Tokenizer.CharView();
+
+        /** The matcher of the combined pattern, or of each pattern. */
+        final Matcher[] matchers;
+
+        /** The bounds of the last match. */
+        int start;
+        int end;
+
+        Finder() {
+            if ( combined != null ) {
+                matchers = new Matcher[] { combined.matcher( text ) };
+            } else {
+                matchers = new Matcher[patterns.length];
+                for ( int i=0; i<patterns.length; i++ ) {
+                    matchers[i] = patterns[i].matcher( text );
+                }
+            }
+        }
+
+        /**
+         *  Searches the characters from <code>from</code> up to
+         *  <code>to</code> for the leftmost match of any pattern.
+         *  @return true if there is one; its bounds in the array are then
+         *  given by start() and end().
+         */
+        public boolean find( char[] buf, int from, int to ) {
+            int length = to - from;
+            Memo memo = length <= MEMO_MAX_LENGTH ? memos.get() : null;
+            int id = -1;
+            if ( memo != null ) {
+                id = memo.terms.add( buf, from, length );
+                if ( id < memo.size ) {
+                    return found( from, memo.starts[id], memo.ends[id] );
+                }
+            }
+            text.set( buf, from, length );
+            int s = -1;
+            int e = -1;
+            for ( Matcher m : matchers ) {
+                m.reset( text );
+                if ( m.find() && ( s < 0 || m.start() < s )) {
+                    s = m.start();
+                    e = m.end();
+                }
+            }
+            if ( memo != null ) {
+                memo.put( id, s, e );
+            }
+            return found( from, s, e );
+        }
+
+        /** Returns the start of the last match. */
+        public int start() {
+            return start;
+        }
+
+        /** Returns the end of the last match. */
+        public int end() {
+            return end;
+        }
+
+        private boolean found( int from, int s, int e ) {
+            start = from + s;
+            end = from + e;
+            return s >= 0;
+        }
+    }
+
+
+    /**
+     *  The bounds of the matches in the tokens a thread has seen, or -1 if
+     *  there was no match, by the ID of the token in a dictionary. The
+     *  dictionary starts over when it is full.
+     */
+    private static class Memo {
+        TermDictionary terms = new TermDictionary();
+        int[] starts = new int[1024];
+        int[] ends = new int[1024];
+
+        /** Number of tokens whose matches are known. */
+        int size = 0;
+
+        void put( int id, int start, int end ) {
+            if ( id != size ) {
+                return;
+            }
+            if ( size == starts.length ) {
+                starts = Arrays.copyOf( starts, 2 * size );
+                ends = Arrays.copyOf( ends, 2 * size );
+            }
+            starts[id] = start;
+            ends[id] = end;
+            size++;
+            if ( size == MEMO_SIZE ) {
+                terms = new TermDictionary();
+                size = 0;
+            }
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Reads the regular expressions of a file, skipping comments and malformed ones. */
+    private static ArrayList<String> read( String filename ) {
+        ArrayList<String> regexes = new ArrayList<String>();
+        String line = null;
+        try ( BufferedReader in = new BufferedReader( new FileReader( filename ))) {
+            while (( line = in.readLine()) != null ) {
+                line = line.trim();
+                if ( !line.startsWith( "//" ) && line.length() > 0 ) {
+                    try {
+                        Pattern.compile( line );
+                        regexes.add( line );
+                    } catch ( PatternSyntaxException e ) {
+                        System.err.println( "ERROR: Malformed regular expression: " + line );
+                    }
+                }
+            }
+        } catch ( IOException e ) {
+            System.err.println( "Warning: IOException reading the regular expressions from file" );
+        }
+        return regexes;
+    }
+}
@@ -9,8 +9,13 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.*;
+import java.nio.file.*;
 import java.lang.StringBuilder;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
 
 /*
  *   Implements an inverted index as a hashtable on disk.
@@ -19,9 +24,28 @@ import java.lang.StringBuilder;
  *   stored in RandomAccessFiles that permit fast (almost constant-time)
  *   disk seeks.
  *
+ *   The dictionary is an open-addressing hash table of fixed-size entries,
+ *   sized from the number of terms, with linear probing. Each entry holds
+ *   a 64-bit fingerprint of its term and the location of the term string
+ *   in the terms file, so a lookup is verified against the full term.
+ *
+ *   The positions of the postings are kept apart from the docIDs and term
+ *   frequencies, in the positions file, so that queries which only need
+ *   docIDs and term frequencies never read or decode them.
+ *
  *   When words are read and indexed, they are first put in an ordinary,
- *   main-memory HashMap. When all words are read, the index is committed
- *   to disk.
+ *   main-memory HashMap. Whenever its estimated size exceeds the memory
+ *   budget, between two documents, it is written to disk as a block sorted
+ *   by term and emptied. When all words are read, the blocks are merged
+ *   term by term in a k-way merge, and the merged postings are written to
+ *   new index files with the suffix ".new". These are then renamed in
+ *   place of the old files, each in one atomic move, and only after that
+ *   do queries see the new index.
+ *
+ *   Queries read the index files through an immutable Snapshot, without
+ *   any locking, so they can run concurrently with each other and with
+ *   indexing. Committing the index writes new files, moves them in place
+ *   and publishes a new snapshot.
  */
 public class PersistentHashedIndex implements Index {
 
@@ -37,24 +61,81 @@ public class PersistentHashedIndex implements Index {
     /** The terms file name */
     public static final String TERMS_FNAME = "terms";
 
+    /** The positions file name */
+    public static final String POSITIONS_FNAME = "positions";
+
     /** The doc info file name */
     public static final String DOCINFO_FNAME = "docInfo";
 
-    /** The dictionary hash table on disk can fit this many entries. */
-    public static final long TABLESIZE = 611953L;
+    /** The dictionary hash table is at most this full. */
+    public static final double LOAD_FACTOR = 0.5;
+
+    /** The dictionary file starts with the number of entries in the hash table. */
+    public static final long DICTIONARY_HEADER_SIZE = 8L;
+
+    /**
+     *  Size of a dictionary entry: the term fingerprint, the pointer to and
+     *  length of the term in the terms file, the pointer to and size of
+     *  the postings in the data file, the pointer to and size of their
+     *  positions in the positions file, and the largest ratio of term
+     *  frequency to document length among the postings.
+     */
+    public static final int ENTRY_SIZE = 52;
 
-    /** The dictionary hash table is stored in this file. */
-    RandomAccessFile dictionaryFile;
+    /** Number of consecutive dictionary entries read at a time when probing. */
+    static final int PROBE_RUN = 8;
 
-    /** The data (the PostingsLists) are stored in this file. */
-    RandomAccessFile dataFile;
+    /** The index files as queries currently see them. */
+    volatile Snapshot snapshot;
+
+    /** Number of snapshots published so far. */
+    long generation = 0;
+
+    /** True if the dictionary and data files should be read through memory mappings. */
+    boolean memoryMapped = false;
+
+    /** Size in bytes of the postings cache of each snapshot, 0 for no cache. */
+    long cacheSize = Runtime.getRuntime().maxMemory() / 8;
+
+    /** Marks the beginning of a data file in the binary postings format. */
+    public static final int DATA_MAGIC = 0x50484958;
+
+    /** Version of the postings format, stored after the magic number. */
+    public static final int DATA_VERSION = 4;
+
+    /** Size of the data file header (magic number and version). */
+    public static final long DATA_HEADER_SIZE = 8L;
 
     /** Pointer to the first free memory cell in the data file. */
-    long free = 0L;
+    long free = DATA_HEADER_SIZE;
 
     /** The cache as a main-memory hash map. */
     HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
 
+    /** Prefix of the sorted blocks written when the memory budget is exceeded. */
+    public static final String BLOCK_FNAME = "block";
+
+    /**
+     *  Approximate number of heap bytes the main-memory index may use before
+     *  it is flushed to disk as a sorted block. Defaults to a quarter of the heap.
+     */
+    long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+
+    /** Estimated number of heap bytes used by the main-memory index. */
+    long memoryUsed = 0L;
+
+    /** Number of sorted blocks flushed to disk so far. */
+    int blocks = 0;
+
+    /**
+     *  The docID of the last inserted token. Blocks are only flushed between
+     *  documents, so that the postings of a document are never split.
+     */
+    int insertDocID = -1;
+
+    /** Estimated heap cost of a new term, a new posting and a new position. */
+    static final int TERM_BYTES = 200, ENTRY_BYTES = 18, POSITION_BYTES = 6;
+
 
     // ===================================================================
 
@@ -68,6 +149,9 @@ public class PersistentHashedIndex implements Index {
         String term;
         long ptr;
         int size;
+        long positionsPtr;
+        int positionsSize;
+        double maxWeight = Double.POSITIVE_INFINITY;
 
         //Constructor
         public Entry(String term, long ptr, int size){
@@ -76,6 +160,13 @@ public class PersistentHashedIndex implements Index {
           this.size = size;
         }
 
+        public Entry(String term, long ptr, int size, long positionsPtr, int positionsSize, double maxWeight){
+          this(term, ptr, size);
+          this.positionsPtr = positionsPtr;
+          this.positionsSize = positionsSize;
+          this.maxWeight = maxWeight;
+        }
+
         public Entry(long ptr, int size){
           this.ptr = ptr;
           this.size = size;
@@ -87,19 +178,259 @@ public class PersistentHashedIndex implements Index {
 
 
     /**
-     *  Constructor. Opens the dictionary file and the data file.
-     *  If these files don't exist, they will be created.
+     *   An immutable view of the index files on disk, with its own cache of
+     *   decoded postings. Reads are positional FileChannel reads or reads of
+     *   memory mappings, neither of which needs a lock, so any number of
+     *   queries can use a snapshot at the same time. The channels of a
+     *   replaced snapshot stay open for the queries still using it; see
+     *   IndexFiles.
      */
-    public PersistentHashedIndex() {
+    class Snapshot {
+
+        /** The number of this snapshot; each commit of the index publishes a higher one. */
+        final long generation;
+
+        /** The dictionary hash table on disk can fit this many entries (0 if there is no index on disk). */
+        final long tableSize;
+
+        /** The open index files, shared with the snapshots of the same files. */
+        final IndexFiles files;
+
+        /** The index files, or null if there is no index on disk. */
+        final FileChannel dictionary, data, terms, positions;
+
+        /** Memory mappings of the index files, or null if reads go through the channels. */
+        final MappedFile mappedDictionary, mappedData, mappedTerms, mappedPositions;
+
+        /** Cache of decoded postings lists, or null if postings are always read from disk. */
+        final PostingsCache cache;
+
+
+        /** Reads the given open index files. */
+        Snapshot( long generation, IndexFiles files, boolean memoryMapped, long cacheSize ) throws IOException {
+            this.generation = generation;
+            this.files = files;
+            dictionary = files.dictionary;
+            data = files.data;
+            terms = files.terms;
+            positions = files.positions;
+            if ( dictionary != null && data != null && terms != null && dictionary.size() >= DICTIONARY_HEADER_SIZE ) {
+                tableSize = read( dictionary, 0, (int)DICTIONARY_HEADER_SIZE ).getLong();
+            } else {
+                tableSize = 0;
+            }
+            if ( memoryMapped && tableSize > 0 && positions != null && data.size() > DATA_HEADER_SIZE ) {
+                mappedDictionary = new MappedFile( new File( INDEXDIR + "/" + DICTIONARY_FNAME ));
+                mappedData = new MappedFile( new File( INDEXDIR + "/" + DATA_FNAME ));
+                mappedTerms = new MappedFile( new File( INDEXDIR + "/" + TERMS_FNAME ));
+                mappedPositions = new MappedFile( new File( INDEXDIR + "/" + POSITIONS_FNAME ));
+            } else {
+                mappedDictionary = mappedData = mappedTerms = mappedPositions = null;
+            }
+            cache = cacheSize > 0 ? new PostingsCache( cacheSize ) : null;
+        }
+
+
+        /**
+         *  Reads the encoded postings of a dictionary entry.
+         */
+        ByteBuffer readData( Entry entry ) throws IOException {
+            if ( mappedData != null ) {
+                return mappedData.slice( entry.ptr, entry.size );
+            }
+            try {
+                return read( data, entry.ptr, entry.size );
+            } finally {
+                Reference.reachabilityFence( files );
+            }
+        }
+
+
+        /**
+         *  Reads the encoded positions of the postings of a dictionary entry.
+         */
+        ByteBuffer readPositions( Entry entry ) {
+            if ( mappedPositions != null ) {
+                return mappedPositions.slice( entry.positionsPtr, entry.positionsSize );
+            }
+            try {
+                return read( positions, entry.positionsPtr, entry.positionsSize );
+            } catch ( IOException e ) {
+                throw new UncheckedIOException( e );
+            } finally {
+                Reference.reachabilityFence( files );
+            }
+        }
+
+
+        /**
+         *  Reads <code>n</code> consecutive entries from the dictionary file,
+         *  starting at the given slot.
+         */
+        ByteBuffer readEntries( long slot, int n ) throws IOException {
+            long pos = DICTIONARY_HEADER_SIZE + slot * ENTRY_SIZE;
+            if ( mappedDictionary != null ) {
+                return mappedDictionary.slice( pos, n * ENTRY_SIZE );
+            }
+            try {
+                return read( dictionary, pos, n * ENTRY_SIZE );
+            } finally {
+                Reference.reachabilityFence( files );
+            }
+        }
+
+
+        /**
+         *  Returns true if the term stored at the given place in the terms file
+         *  is equal to <code>term</code>.
+         */
+        boolean termEquals( String term, long termPtr, int termLength ) throws IOException {
+            byte[] bytes = term.getBytes( StandardCharsets.UTF_8 );
+            if ( bytes.length != termLength ) {
+                return false;
+            }
+            ByteBuffer stored;
+            if ( mappedTerms != null ) {
+                stored = mappedTerms.slice( termPtr, termLength );
+            } else {
+                try {
+                    stored = read( terms, termPtr, termLength );
+                } finally {
+                    Reference.reachabilityFence( files );
+                }
+            }
+            return stored.equals( ByteBuffer.wrap( bytes ));
+        }
+
+
+        /**
+         *  Reads the entry of a term from the dictionary file, or returns null
+         *  if the term is not in the dictionary. The entries from the home slot
+         *  of the hash onwards are read PROBE_RUN at a time, so a lookup usually
+         *  takes one read of the dictionary and one read of the terms file.
+         */
+        Entry readEntry(String term, long hash){
+            try {
+                long slot = Long.remainderUnsigned( hash, tableSize );
+                for ( long probed = 0; probed < tableSize; ) {
+                    int n = (int)Math.min( PROBE_RUN, tableSize - slot );
+                    ByteBuffer buf = readEntries( slot, n );
+                    for ( int i=0; i<n; i++ ) {
+                        long fingerprint = buf.getLong();
+                        long termPtr = buf.getLong();
+                        int termLength = buf.getInt();
+                        long ptr = buf.getLong();
+                        int size = buf.getInt();
+                        long positionsPtr = buf.getLong();
+                        int positionsSize = buf.getInt();
+                        double maxWeight = buf.getDouble();
+                        if ( fingerprint == 0 ) {
+                            // An empty slot ends the probe sequence
+                            return null;
+                        }
+                        if ( fingerprint == hash && termEquals( term, termPtr, termLength )) {
+                            return new Entry( term, ptr, size, positionsPtr, positionsSize, maxWeight );
+                        }
+                    }
+                    probed += n;
+                    slot = ( slot + n ) % tableSize;
+                }
+                return null;
+            }
+            catch ( IOException e ) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+
+    /** Closes the index files that no snapshot can read any more. */
+    static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     *   The index files opened for reading, as they were on disk at one
+     *   point. Snapshots that only differ in their cache or memory mappings
+     *   share them. Once the files are replaced, the channels are closed
+     *   when no snapshot refers to them any longer: neither the current
+     *   one, nor one kept by a query in flight, nor one kept by a postings
+     *   list or cursor whose positions are read lazily.
+     */
+    static class IndexFiles {
+
+        /** The index files, or null if there is no index on disk. */
+        final FileChannel dictionary, data, terms, positions;
+
+        /** Opens the index files as they are on disk now. */
+        IndexFiles() throws IOException {
+            dictionary = open( DICTIONARY_FNAME );
+            data = open( DATA_FNAME );
+            terms = open( TERMS_FNAME );
+            positions = open( POSITIONS_FNAME );
+            CLEANER.register( this, new Closer( dictionary, data, terms, positions ));
+        }
+    }
+
+    /** Closes channels, without referring to the IndexFiles they belong to. */
+    static class Closer implements Runnable {
+        final FileChannel[] channels;
+
+        Closer( FileChannel... channels ) {
+            this.channels = channels;
+        }
+
+        public void run() {
+            for ( FileChannel channel : channels ) {
+                try {
+                    if ( channel != null ) {
+                        channel.close();
+                    }
+                } catch ( IOException e ) {
+                    // Nothing more can be done with the channel
+                }
+            }
+        }
+    }
+
+
+    /** Opens an index file for reading, or returns null if it does not exist. */
+    static FileChannel open( String fname ) throws IOException {
         try {
-            dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
-            dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
-        } catch ( IOException e ) {
-            e.printStackTrace();
+            return FileChannel.open( Paths.get( INDEXDIR, fname ), StandardOpenOption.READ );
+        } catch ( NoSuchFileException e ) {
+            return null;
+        }
+    }
+
+
+    /**
+     *  Reads <code>size</code> bytes at position <code>pos</code> of a
+     *  channel. Positional reads do not move the position of the channel,
+     *  so they are safe to do from many threads.
+     */
+    static ByteBuffer read( FileChannel channel, long pos, int size ) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate( size );
+        while ( buf.hasRemaining() ) {
+            if ( channel.read( buf, pos + buf.position() ) < 0 ) {
+                throw new EOFException();
+            }
         }
+        buf.flip();
+        return buf;
+    }
+
 
+    // ==================================================================
+
+
+    /**
+     *  Constructor. Opens the index files if they exist.
+     */
+    public PersistentHashedIndex() {
+        publish( true );
         try {
             readDocInfo();
+            checkDataHeader();
         } catch ( FileNotFoundException e ) {
         } catch ( IOException e ) {
             e.printStackTrace();
@@ -107,37 +438,64 @@ public class PersistentHashedIndex implements Index {
     }
 
     /**
-     *  Writes data to the data file at a specified place.
-     *
-     *  @return The number of bytes written.
+     *  Publishes a new snapshot that all new queries read. The index files
+     *  are opened as they are on disk now if they have changed, and shared
+     *  with the current snapshot otherwise.
      */
-    int writeData( String dataString, long ptr ) {
+    synchronized void publish( boolean filesChanged ) {
         try {
-            dataFile.seek( ptr );
-            byte[] data = dataString.getBytes();
-            dataFile.write( data );
-            return data.length;
-        }  catch ( IOException e ) {
+            IndexFiles files = filesChanged || snapshot == null ? new IndexFiles() : snapshot.files;
+            snapshot = new Snapshot( ++generation, files, memoryMapped, cacheSize );
+        } catch ( IOException e ) {
             e.printStackTrace();
-            return -1;
         }
     }
 
+    /** Returns the number of the snapshot that queries currently read. */
+    public long getGeneration() {
+        return snapshot.generation;
+    }
 
     /**
-     *  Reads data from the data file
+     *  Chooses whether postings are read through memory mappings of the
+     *  index files instead of positional reads of the files.
      */
-    String readData( long ptr, int size ) {
-        try {
-            //dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
-            dataFile.seek( ptr );
-            byte[] data = new byte[size];
-            dataFile.readFully( data );
-            //dataFile.close();
-            return new String(data);
-        }  catch ( IOException e ) {
-            e.printStackTrace();
-            return null;
+    public void setMemoryMapped( boolean memoryMapped ) {
+        this.memoryMapped = memoryMapped;
+        publish( false );
+    }
+
+    /**
+     *  Sets the approximate number of heap bytes used for caching postings
+     *  lists read from disk. A size of 0 disables the cache.
+     */
+    public void setCacheSize( long bytes ) {
+        cacheSize = Math.max( 0, bytes );
+        publish( false );
+    }
+
+    /** Returns the postings cache of the current snapshot, or null if there is none. */
+    public PostingsCache getCache() {
+        return snapshot.cache;
+    }
+
+    /**
+     *  Warns if an existing data file was not written in the current
+     *  postings format.
+     */
+    private void checkDataHeader() throws IOException {
+        FileChannel data = snapshot.data;
+        if ( data == null || data.size() == 0 ) {
+            return;
+        }
+        ByteBuffer header = data.size() < DATA_HEADER_SIZE ? null : read( data, 0, (int)DATA_HEADER_SIZE );
+        if ( header == null || header.getInt() != DATA_MAGIC ) {
+            System.err.println( "Warning: the data file is not in the binary postings format, the index must be rebuilt." );
+        } else {
+            int version = header.getInt();
+            if ( version != DATA_VERSION ) {
+                System.err.println( "Warning: the data file has format version " + version + " instead of " + DATA_VERSION + ", the index must be rebuilt." );
+            }
         }
     }
 
@@ -146,54 +504,92 @@ public class PersistentHashedIndex implements Index {
     //
     //  Reading and writing to the dictionary file.
 
-    /*
-     *  Writes an entry to the dictionary hash table file.
-     *
-     *  @param entry The key of this entry is assumed to have a fixed length
-     *  @param ptr   The place in the dictionary file to store the entry
+    /**
+     *  Collects the dictionary entries while the postings are written to
+     *  the data file, and then writes them as a hash table sized from the
+     *  number of terms.
      */
+    class DictionaryWriter {
 
-    void writeEntry( Entry entry, long hash ) {
-       try {
-            String rev = new StringBuilder(entry.term).reverse().toString();
-            long h2 = hash(rev);
-            h2 = (h2%90);
-           dictionaryFile.seek(hash*100 + h2);
-           dictionaryFile.writeChar(entry.term.charAt(0));
-           dictionaryFile.writeLong(entry.ptr);
-           dictionaryFile.writeInt(entry.size);
-         }
-         catch ( IOException e ) {
-             e.printStackTrace();
-         }
-     }
-
-
-  /**
-     *  Reads an entry from the dictionary file.
-     *
-     *  @param ptr The place in the dictionary file where to start reading.
-     */
-    Entry readEntry(String term, long hash){
+        long[] fingerprints = new long[1024];
+        long[] termPtrs = new long[1024];
+        int[] termLengths = new int[1024];
+        long[] ptrs = new long[1024];
+        int[] sizes = new int[1024];
+        long[] positionsPtrs = new long[1024];
+        int[] positionsSizes = new int[1024];
+        double[] maxWeights = new double[1024];
 
-        try {
-          //dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
-          String rev = new StringBuilder(term).reverse().toString();
-          long h2 = hash(rev);
-          h2 = (h2%90);
-            dictionaryFile.seek(hash*100 + h2);
-            if(dictionaryFile.readChar() == (term.charAt(0))){
-              long ptr = dictionaryFile.readLong();
-              int size = dictionaryFile.readInt();
-              Entry e = new Entry(ptr, size);
-              //dictionaryFile.close();
-              return e;
+        /** Number of entries collected. */
+        int n = 0;
+
+        /** Number of entries that could not be put in their home slot. */
+        int collisions = 0;
+
+        void add( long fingerprint, long termPtr, int termLength, long ptr, int size, long positionsPtr, int positionsSize, double maxWeight ) {
+            if ( n == fingerprints.length ) {
+                int capacity = 2 * n;
+                fingerprints = Arrays.copyOf( fingerprints, capacity );
+                termPtrs = Arrays.copyOf( termPtrs, capacity );
+                termLengths = Arrays.copyOf( termLengths, capacity );
+                ptrs = Arrays.copyOf( ptrs, capacity );
+                sizes = Arrays.copyOf( sizes, capacity );
+                positionsPtrs = Arrays.copyOf( positionsPtrs, capacity );
+                positionsSizes = Arrays.copyOf( positionsSizes, capacity );
+                maxWeights = Arrays.copyOf( maxWeights, capacity );
             }
-            else{return null;}
+            fingerprints[n] = fingerprint;
+            termPtrs[n] = termPtr;
+            termLengths[n] = termLength;
+            ptrs[n] = ptr;
+            sizes[n] = size;
+            positionsPtrs[n] = positionsPtr;
+            positionsSizes[n] = positionsSize;
+            maxWeights[n] = maxWeight;
+            n++;
         }
-        catch ( IOException e ) {
-            e.printStackTrace();
-            return null;
+
+        /**
+         *  Places the entries in the hash table with linear probing, and
+         *  writes the table to the dictionary file slot by slot.
+         */
+        void write( RandomAccessFile dictionaryFile ) throws IOException {
+            long tableSize = Math.max( 1L, (long)Math.ceil( n / LOAD_FACTOR ));
+            int[] slots = new int[(int)tableSize];
+            Arrays.fill( slots, -1 );
+            for ( int i=0; i<n; i++ ) {
+                int slot = (int)Long.remainderUnsigned( fingerprints[i], tableSize );
+                if ( slots[slot] >= 0 ) {
+                    collisions++;
+                }
+                while ( slots[slot] >= 0 ) {
+                    slot = slot + 1 == tableSize ? 0 : slot + 1;
+                }
+                slots[slot] = i;
+            }
+            dictionaryFile.setLength( 0 );
+            dictionaryFile.writeLong( tableSize );
+            ByteBuffer buf = ByteBuffer.allocate( 4096 * ENTRY_SIZE );
+            for ( int slot=0; slot<tableSize; slot++ ) {
+                int i = slots[slot];
+                if ( i < 0 ) {
+                    buf.put( new byte[ENTRY_SIZE] );
+                } else {
+                    buf.putLong( fingerprints[i] );
+                    buf.putLong( termPtrs[i] );
+                    buf.putInt( termLengths[i] );
+                    buf.putLong( ptrs[i] );
+                    buf.putInt( sizes[i] );
+                    buf.putLong( positionsPtrs[i] );
+                    buf.putInt( positionsSizes[i] );
+                    buf.putDouble( maxWeights[i] );
+                }
+                if ( !buf.hasRemaining() ) {
+                    dictionaryFile.write( buf.array(), 0, buf.position() );
+                    buf.clear();
+                }
+            }
+            dictionaryFile.write( buf.array(), 0, buf.position() );
         }
     }
 
@@ -238,42 +634,217 @@ public class PersistentHashedIndex implements Index {
 
 
     /**
-     *  Write the index to files.
+     *  Sets the approximate number of heap bytes the main-memory index may use
+     *  before it is flushed to disk.
+     */
+    public void setMemoryBudget( long bytes ) {
+        memoryBudget = bytes;
+    }
+
+
+    /**
+     *  Writes the main-memory index to disk as a block sorted by term, and
+     *  empties the main-memory index. If the block cannot be written, the
+     *  main-memory index is kept and an UncheckedIOException is thrown.
+     */
+    void flushBlock() {
+        String[] terms = index.keySet().toArray( new String[0] );
+        Arrays.sort( terms );
+        File file = new File( INDEXDIR + "/" + BLOCK_FNAME + blocks );
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+                  new FileOutputStream( file )))) {
+            out.writeInt( terms.length );
+            for ( String term : terms ) {
+                byte[][] encoded = encode( index.get( term ));
+                // Unlike writeUTF, a length in an int fits terms of any length
+                byte[] termBytes = term.getBytes( StandardCharsets.UTF_8 );
+                out.writeInt( termBytes.length );
+                out.write( termBytes );
+                out.writeInt( encoded[0].length );
+                out.write( encoded[0] );
+                out.writeInt( encoded[1].length );
+                out.write( encoded[1] );
+            }
+        } catch ( IOException e ) {
+            file.delete();
+            throw new UncheckedIOException( e );
+        }
+        blocks++;
+        index.clear();
+        memoryUsed = 0L;
+    }
+
+
+    /**
+     *  Reads the terms of one sorted block in order.
+     */
+    static class BlockReader {
+
+        /** The number of the block, used to merge postings in docID order. */
+        final int block;
+
+        final DataInputStream in;
+
+        /** Number of terms not read yet. */
+        int remaining;
+
+        /** The current term, its encoded postings and their positions. */
+        String term;
+        byte[] data;
+        byte[] positions;
+
+        BlockReader( int block ) throws IOException {
+            this.block = block;
+            in = new DataInputStream( new BufferedInputStream(
+                     new FileInputStream( INDEXDIR + "/" + BLOCK_FNAME + block )));
+            remaining = in.readInt();
+        }
+
+        /** Moves to the next term, or returns false at the end of the block. */
+        boolean advance() throws IOException {
+            if ( remaining == 0 ) {
+                in.close();
+                return false;
+            }
+            remaining--;
+            byte[] termBytes = new byte[in.readInt()];
+            in.readFully( termBytes );
+            term = new String( termBytes, StandardCharsets.UTF_8 );
+            data = new byte[in.readInt()];
+            in.readFully( data );
+            positions = new byte[in.readInt()];
+            in.readFully( positions );
+            return true;
+        }
+    }
+
+
+    /**
+     *  Streams the terms of all sorted blocks in term order, doing a k-way
+     *  merge of the blocks. Postings of a term found in several blocks are
+     *  concatenated in block order, which is also docID order.
+     */
+    class BlockMerger implements Iterator<Map.Entry<String,PostingsList>> {
+
+        PriorityQueue<BlockReader> queue = new PriorityQueue<BlockReader>( Math.max( 1, blocks ), new Comparator<BlockReader>() {
+                public int compare( BlockReader a, BlockReader b ) {
+                    int c = a.term.compareTo( b.term );
+                    return c != 0 ? c : Integer.compare( a.block, b.block );
+                }
+            });
+
+        BlockMerger() throws IOException {
+            for ( int i=0; i<blocks; i++ ) {
+                BlockReader reader = new BlockReader( i );
+                if ( reader.advance() ) {
+                    queue.add( reader );
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        public Map.Entry<String,PostingsList> next() {
+            try {
+                BlockReader reader = queue.poll();
+                String term = reader.term;
+                PostingsList pl = decode( ByteBuffer.wrap( reader.data ), ByteBuffer.wrap( reader.positions ));
+                if ( reader.advance() ) queue.add( reader );
+                while ( !queue.isEmpty() && queue.peek().term.equals( term )) {
+                    reader = queue.poll();
+                    pl.append( decode( ByteBuffer.wrap( reader.data ), ByteBuffer.wrap( reader.positions )));
+                    if ( reader.advance() ) queue.add( reader );
+                }
+                return new AbstractMap.SimpleEntry<String,PostingsList>( term, pl );
+            } catch ( IOException e ) {
+                throw new UncheckedIOException( e );
+            }
+        }
+    }
+
+
+    /** Suffix of the index files while they are being written. */
+    static final String NEW_SUFFIX = ".new";
+
+    /**
+     *  Write the index to files. The files are written under new names and
+     *  then moved in place of the old ones, so that queries running in the
+     *  meantime keep reading the old files through their snapshot.
      */
     public void writeIndex() {
-        int collisions = 0;
-        ArrayList<Long> hashes = new ArrayList<Long>();
+        int terms = 0;
+        DictionaryWriter dictionary = new DictionaryWriter();
+        String[] fnames = { DICTIONARY_FNAME, DATA_FNAME, TERMS_FNAME, POSITIONS_FNAME };
         try {
             // Write the 'docNames' and 'docLengths' hash maps to a file
             writeDocInfo();
 
-            // Write the dictionary and the postings list
-
-            //
-            //  YOUR CODE HERE
-            //
-
-            // Go through all terms in the index
-            long ptr = free;
-            for(String term: index.keySet()){
-                String encodedPostings = encode(index.get(term));
-                int size = writeData(encodedPostings, ptr);
-                Entry entry = new Entry(term, ptr, size);
-                long hash = hash(term);
-                if(hashes.contains(hash)){collisions++;}
-                else{hashes.add(hash);}
-                writeEntry(entry, hash);
-                ptr += size;
+            // Write the dictionary and the postings list. If parts of the
+            // index have been flushed to disk, the blocks are merged.
+            Iterator<Map.Entry<String,PostingsList>> it;
+            if ( blocks == 0 ) {
+                it = index.entrySet().iterator();
+            } else {
+                if ( !index.isEmpty() ) {
+                    flushBlock();
+                }
+                it = new BlockMerger();
             }
 
-            //dataFile.close();
-            //dictionaryFile.close();
+            try ( RandomAccessFile dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME + NEW_SUFFIX, "rw" );
+                  RandomAccessFile dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME + NEW_SUFFIX, "rw" );
+                  RandomAccessFile termsFile = new RandomAccessFile( INDEXDIR + "/" + TERMS_FNAME + NEW_SUFFIX, "rw" );
+                  RandomAccessFile positionsFile = new RandomAccessFile( INDEXDIR + "/" + POSITIONS_FNAME + NEW_SUFFIX, "rw" )) {
+                dataFile.setLength( 0 );
+                dataFile.writeInt( DATA_MAGIC );
+                dataFile.writeInt( DATA_VERSION );
+
+                // Go through all terms in the index
+                int[] lengths = Index.docLengthArray();
+                long ptr = free;
+                termsFile.setLength( 0 );
+                long termPtr = 0;
+                positionsFile.setLength( 0 );
+                long positionsPtr = 0;
+                while ( it.hasNext() ) {
+                    Map.Entry<String,PostingsList> e = it.next();
+                    String term = e.getKey();
+                    terms++;
+                    PostingsList pl = e.getValue();
+                    pl.setMaxWeight( lengths );
+                    byte[][] encodedPostings = encode(pl);
+                    int size = encodedPostings[0].length;
+                    dataFile.write( encodedPostings[0] );
+                    positionsFile.write( encodedPostings[1] );
+                    byte[] termBytes = term.getBytes( StandardCharsets.UTF_8 );
+                    termsFile.write( termBytes );
+                    dictionary.add( hash(term), termPtr, termBytes.length, ptr, size, positionsPtr, encodedPostings[1].length, pl.maxWeight() );
+                    termPtr += termBytes.length;
+                    ptr += size;
+                    positionsPtr += encodedPostings[1].length;
+                }
+                dictionary.write( dictionaryFile );
+            }
 
+            synchronized ( this ) {
+                for ( String fname : fnames ) {
+                    Files.move( Paths.get( INDEXDIR, fname + NEW_SUFFIX ), Paths.get( INDEXDIR, fname ),
+                                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+                }
+                publish( true );
+            }
+
+            for ( int i=0; i<blocks; i++ ) {
+                new File( INDEXDIR + "/" + BLOCK_FNAME + i ).delete();
+            }
         }
         catch ( IOException e ) {
             e.printStackTrace();
         }
-        System.err.println( collisions + " collisions." );
+        System.err.println( terms + " unique words" );
+        System.err.println( dictionary.collisions + " collisions." );
     }
 
 
@@ -289,148 +860,258 @@ public class PersistentHashedIndex implements Index {
         //  REPLACE THE STATEMENT BELOW WITH YOUR CODE
         //
 
+        Snapshot s = snapshot;
+        if(s.tableSize == 0){
+          return null;
+        }
+        if(s.cache != null){
+          PostingsList pl = s.cache.get(term);
+          if(pl != null){
+            return pl;
+          }
+        }
         long hash = hash(term);
-        Entry entry = readEntry(term, hash);
+        Entry entry = s.readEntry(term, hash);
         if(entry == null ){
           return null;
         }
         else{
-          String data = readData(entry.ptr, entry.size);
-          PostingsList pl = decode(data);
+          PostingsList pl;
+          try{
+            pl = decode(s.readData(entry), null);
+          }
+          catch(IOException e){
+            e.printStackTrace();
+            return null;
+          }
+          // The positions are only read if a query asks for them
+          pl.positionsSource = () -> s.readPositions(entry);
+          pl.maxWeight = entry.maxWeight;
+          if(s.cache != null){
+            s.cache.put(term, pl);
+          }
           return pl;
         }
 
     }
 
 
+    /**
+     *  Returns a cursor over the postings for a specific term, or null if
+     *  the term is not in the index. A list that is missing from the cache
+     *  is decoded and offered to it, unless it is too large to be cached.
+     *  Then the cursor reads the encoded list and only decodes the blocks
+     *  it visits, and reads positions only if they are asked for.
+     */
+    public PostingsCursor getCursor( String term ) {
+        Snapshot s = snapshot;
+        if(s.tableSize == 0){
+          return null;
+        }
+        if(s.cache != null){
+          PostingsList pl = s.cache.get(term);
+          if(pl != null){
+            return pl.cursor();
+          }
+        }
+        Entry entry = s.readEntry(term, hash(term));
+        if(entry == null){
+          return null;
+        }
+        try{
+          if(s.cache != null && s.cache.mayFit(term, entry.size)){
+            PostingsList pl = decode(s.readData(entry), null);
+            pl.positionsSource = () -> s.readPositions(entry);
+            pl.maxWeight = entry.maxWeight;
+            s.cache.put(term, pl);
+            return pl.cursor();
+          }
+          return new BlockPostingsCursor(s.readData(entry), () -> s.readPositions(entry), entry.maxWeight);
+        }
+        catch(IOException e){
+          e.printStackTrace();
+          return null;
+        }
+    }
+
+
     /**
      *  Inserts this token in the main-memory hashtable.
      */
     public void insert( String token, int docID, int offset ) {
+      if ( docID != insertDocID && memoryUsed > memoryBudget ) {
+        flushBlock();
+      }
+      insertDocID = docID;
+
       //if token is not in hashmap, make new postings list
-      if(!index.containsKey(token)){index.put(token, new PostingsList());}
+      if(!index.containsKey(token)){
+        index.put(token, new PostingsList());
+        memoryUsed += TERM_BYTES;
+      }
 
       //add new entry
-      index.get(token).insert(docID, 1.0, offset);
+      PostingsList pl = index.get(token);
+      int size = pl.size();
+      pl.insert(docID, offset);
+      memoryUsed += POSITION_BYTES + (pl.size() - size) * ENTRY_BYTES;
+    }
+
+    /**
+     *  Appends a partial postings list to the main-memory hashtable.
+     */
+    public void merge( String token, PostingsList postings ) {
+        PostingsList pl = index.get( token );
+        if ( pl == null ) {
+            index.put( token, postings );
+            memoryUsed += TERM_BYTES;
+        } else {
+            pl.append( postings );
+        }
+        memoryUsed += postings.size() * ENTRY_BYTES + postings.numPositions() * POSITION_BYTES;
+        if ( memoryUsed > memoryBudget ) {
+            flushBlock();
+        }
     }
 
+    /**
+     *  Returns the 64-bit fingerprint of a term (FNV-1a followed by a
+     *  finalizing mix). It is never 0, which marks empty dictionary entries.
+     */
     public long hash(String str){
-      long hash = 7;
+      long hash = 0xcbf29ce484222325L;
       for(int i = 0; i < str.length(); i++){
-        hash = hash*31 + str.charAt(i);
-        hash = (hash % TABLESIZE);
-      }
-      return hash;
-  }
-
-  /*
-  "Entry: [ [ int double [ int int int ] ] [ [ int double [ int int int ] ] [ [ int
-  double [ int int int ] ]  "
-  */
-
-/*  public String encode(PostingsList pl){
-    StringBuilder sb = new StringBuilder();
-    ArrayList<PostingsEntry> list = pl.list;
-    ArrayList<Integer> containedDocs = pl.containedDocs;
-    sb.append("[ ");
-    sb.append("[ ");
-    for(PostingsEntry entry: list){
-      sb.append("[ ");
-      sb.append(entry.docID);
-      sb.append(" ");
-      sb.append(entry.score);
-      sb.append(" ");
-      sb.append("[ ");
-      for(int pos: entry.positions){
-        sb.append(pos);
-        sb.append(" ");
+        hash ^= str.charAt(i);
+        hash *= 0x100000001b3L;
       }
-      sb.append("] ");
-      sb.append("] ");
-
-    }
-    sb.append("] ");
-    sb.append("[ ");
-    for(int doc: containedDocs){
-      sb.append(doc);
-      sb.append(" ");
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+      return hash == 0 ? 1 : hash;
     }
-    sb.append("] ");
-    sb.append("]");
-
-    return sb.toString();
-  }
-
 
+    // ==================================================================
+    //
+    //  The binary postings format. A postings list is stored as its
+    //  number of postings, a skip table, and the postings in blocks of
+    //  SKIP_INTERVAL. The skip table has, for each block, the gap from the
+    //  last docID of the previous block to its own last docID, its length
+    //  in bytes, and the length in bytes of its positions. Each posting is
+    //  stored as the gap to the previous docID and the term frequency.
+    //  The positions are stored separately, as the gaps between the
+    //  positions of each posting, one posting after the other.
+    //  All numbers are variable-byte coded: seven bits per byte, with the
+    //  high bit set on every byte but the last.
+
+    /** Number of postings in each block of an encoded postings list. */
+    public static final int SKIP_INTERVAL = 128;
+
+    /** Returns the number of blocks of an encoded list with this many postings. */
+    static int blocks( int size ) {
+        return ( size + SKIP_INTERVAL - 1 ) / SKIP_INTERVAL;
+    }
 
-  public PostingsList decode(String str){
-    //go through list and create objects
-    PostingsList pl = new PostingsList();
-
+    /**
+     *  Writes a non-negative number in variable-byte code.
+     */
+    static void writeVB( ByteBuffer buf, int n ) {
+        while ( ( n & ~0x7F ) != 0 ) {
+            buf.put( (byte)( ( n & 0x7F ) | 0x80 ));
+            n >>>= 7;
+        }
+        buf.put( (byte)n );
+    }
 
-    String[] split = str.split("\\s+");
-    if(!split[0].equals("[")){return null;}
-    boolean flag = true;
-    int i = 3;
-    while(flag) {
-      PostingsEntry entry = new PostingsEntry(Integer.parseInt(split[i]), Double.parseDouble(split[i+1]));
-      i += 3;
-      while(!split[i].equals("]")){
-        entry.positions.add(Integer.parseInt(split[i]));
-        i++;
-      }
-      pl.list.add(entry);
-      if(split[i+2].equals("]")){
-        i+=4;
-        flag = false;
-      }
-      else{
-        i+=3;
-      }
+    /**
+     *  Reads a number in variable-byte code.
+     */
+    static int readVB( ByteBuffer buf ) {
+        int b = buf.get();
+        int n = b & 0x7F;
+        for ( int shift = 7; b < 0; shift += 7 ) {
+            b = buf.get();
+            n |= ( b & 0x7F ) << shift;
+        }
+        return n;
     }
 
-    while(!split[i].equals("]")){
-      pl.containedDocs.add(Integer.parseInt(split[i]));
-      i++;
+    /**
+     *  Encodes a postings list in the binary postings format. Returns the
+     *  encoded postings and the encoded positions, in that order.
+     */
+    public static byte[][] encode( PostingsList pl ) {
+        // A variable-byte code of an int takes at most five bytes
+        int blocks = blocks( pl.size() );
+        ByteBuffer body = ByteBuffer.allocate( 5 * 2 * pl.size() );
+        ByteBuffer positions = ByteBuffer.allocate( 5 * pl.numPositions() );
+        int[] blockLengths = new int[blocks];
+        int[] positionsLengths = new int[blocks];
+        int lastDocID = 0;
+        for ( int b=0; b<blocks; b++ ) {
+            int blockStart = body.position();
+            int positionsStart = positions.position();
+            int end = Math.min( pl.size(), ( b + 1 ) * SKIP_INTERVAL );
+            for ( int i=b*SKIP_INTERVAL; i<end; i++ ) {
+                writeVB( body, pl.docID( i ) - lastDocID );
+                lastDocID = pl.docID( i );
+                int tf = pl.tf( i );
+                writeVB( body, tf );
+                int start = pl.positionsStart( i );
+                int lastPos = 0;
+                for ( int j=start; j<start+tf; j++ ) {
+                    writeVB( positions, pl.position( j ) - lastPos );
+                    lastPos = pl.position( j );
+                }
+            }
+            blockLengths[b] = body.position() - blockStart;
+            positionsLengths[b] = positions.position() - positionsStart;
+        }
+        ByteBuffer buf = ByteBuffer.allocate( 5 * ( 1 + 3 * blocks ) + body.position() );
+        writeVB( buf, pl.size() );
+        int lastBlockDocID = 0;
+        for ( int b=0; b<blocks; b++ ) {
+            int blockDocID = pl.docID( Math.min( pl.size(), ( b + 1 ) * SKIP_INTERVAL ) - 1 );
+            writeVB( buf, blockDocID - lastBlockDocID );
+            writeVB( buf, blockLengths[b] );
+            writeVB( buf, positionsLengths[b] );
+            lastBlockDocID = blockDocID;
+        }
+        buf.put( body.array(), 0, body.position() );
+        return new byte[][] { Arrays.copyOf( buf.array(), buf.position() ),
+                              Arrays.copyOf( positions.array(), positions.position() ) };
     }
-    return pl;
-  } */
+
     /**
-     *  Write index to file after indexing is done.
+     *  Decodes a postings list in the binary postings format, starting at
+     *  the current position of the buffers. If <code>positions</code> is
+     *  null, only the docIDs and term frequencies are decoded.
      */
+    public static PostingsList decode( ByteBuffer buf, ByteBuffer positions ) {
+        PostingsList pl = new PostingsList();
+        int size = readVB( buf );
+        // The blocks follow each other, so the skip table is not needed
+        for ( int b=0; b<3*blocks( size ); b++ ) {
+            readVB( buf );
+        }
+        int docID = 0;
+        for ( int i=0; i<size; i++ ) {
+            docID += readVB( buf );
+            int tf = readVB( buf );
+            if ( positions == null ) {
+                pl.addPosting( docID, tf );
+                continue;
+            }
+            int pos = 0;
+            for ( int j=0; j<tf; j++ ) {
+                pos += readVB( positions );
+                pl.insert( docID, pos );
+            }
+        }
+        return pl;
+    }
 
-     public static String encode(PostingsList pl){
-       StringBuilder sb = new StringBuilder();
-       ArrayList<PostingsEntry> list = pl.list;
-       for(PostingsEntry entry: list){
-         sb.append(entry.docID);
-         for(int pos: entry.positions){
-           sb.append(":");
-           sb.append(pos);
-         }
-         sb.append(",");
-       }
-       return sb.toString();
-     }
-
-     public static PostingsList decode(String str){
-       //go through list and create objects
-       PostingsList pl = new PostingsList();
-
-       String[] split = str.split(",");
-       for(int i = 0; i < split.length; i++){
-         String[] e = split[i].split((":"));
-         PostingsEntry entry = new PostingsEntry(Integer.parseInt(e[0]), 0.0);
-         for(int j = 1; j < e.length -1; j ++){
-           entry.positions.add(Integer.parseInt(e[j]));
-         }
-         pl.list.add(entry);
-       }
-       return pl;
-     }
 
     public void cleanup() {
-        System.err.println( index.keySet().size() + " unique words" );
         System.err.print( "Writing index to disk..." );
         writeIndex();
         System.err.println( "done!" );
@@ -0,0 +1,73 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+
+/**
+ *   A cursor over the documents where the terms of several cursors occur
+ *   next to each other, in order.
+ *
+ *   Like Searcher.phrase_search, the cursors are aligned on the documents
+ *   that have all the terms, and positions are only read for those. A term
+ *   that occurs more than once in the phrase may share one cursor.
+ */
+public class PhraseCursor extends PostingsCursor {
+
+    /** The cursor of each term of the phrase, in order. */
+    final PostingsCursor[] cursors;
+
+    /** The next position of each term to look at, used by Searcher.phrase_occurs. */
+    final int[] next;
+
+    /** The current docID. */
+    int docID = -1;
+
+
+    /** Creates a phrase cursor from cursors that have not been moved yet. */
+    public PhraseCursor( PostingsCursor[] cursors ) {
+        this.cursors = cursors.clone();
+        this.next = new int[cursors.length];
+    }
+
+
+    public int docID() {
+        return docID;
+    }
+
+    public int nextDoc() {
+        return docID == NO_MORE_DOCS ? docID : advance( docID + 1 );
+    }
+
+    public int advance( int target ) {
+        if ( docID >= target ) {
+            return docID;
+        }
+        docID = Searcher.align( cursors, target );
+        while ( docID != NO_MORE_DOCS && !Searcher.phrase_occurs( cursors, next )) {
+            docID = Searcher.align( cursors, docID + 1 );
+        }
+        return docID;
+    }
+
+    /** Returns the term frequency of the first term of the phrase. */
+    public int tf() {
+        return cursors[0].tf();
+    }
+
+    /** Positions are not defined for a phrase. */
+    public int position( int j ) {
+        throw new UnsupportedOperationException( "A phrase has no positions" );
+    }
+
+    /** Returns the size of the shortest cursor, which bounds the number of documents. */
+    public int size() {
+        int size = Integer.MAX_VALUE;
+        for ( PostingsCursor c : cursors ) {
+            size = Math.min( size, c.size() );
+        }
+        return size;
+    }
+}
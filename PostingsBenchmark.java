@@ -0,0 +1,176 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.*;
+import java.util.*;
+
+
+/**
+ *  Compares the binary postings format of PersistentHashedIndex with the
+ *  text format it replaced ("docID:pos:pos,") on the postings of a
+ *  directory: the total encoded size, and the time to decode every list.
+ */
+public class PostingsBenchmark {
+
+    /** The postings of the indexed directory. */
+    HashMap<String,PostingsList> postings = new HashMap<String,PostingsList>();
+
+    /** The next docID. */
+    int lastDocID = 0;
+
+    String patternsfile = null;
+
+
+    /**
+     *  Tokenizes the file @code{f}. If @code{f} is a directory,
+     *  all its files and subdirectories are recursively processed.
+     */
+    public void processFiles( File f ) {
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                if ( fs != null ) {
+                    Arrays.sort( fs );
+                    for ( int i=0; i<fs.length; i++ ) {
+                        processFiles( new File( f, fs[i] ));
+                    }
+                }
+            } else {
+                int docID = lastDocID++;
+                try {
+                    Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+                    Tokenizer tok = new Tokenizer( reader, true, false, true, patternsfile );
+                    int offset = 0;
+                    while ( tok.hasMoreTokens() ) {
+                        String token = tok.nextToken();
+                        PostingsList pl = postings.get( token );
+                        if ( pl == null ) {
+                            pl = new PostingsList();
+                            postings.put( token, pl );
+                        }
+                        pl.insert( docID, offset++ );
+                    }
+                    reader.close();
+                } catch ( IOException e ) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+
+    /** The text format that preceded the binary postings format. */
+    static String encodeText( PostingsList pl ) {
+        StringBuilder sb = new StringBuilder();
+        for ( int i=0; i<pl.size(); i++ ) {
+            sb.append( pl.docID( i ));
+            int start = pl.positionsStart( i );
+            for ( int j=start; j<start+pl.tf( i ); j++ ) {
+                sb.append( ':' ).append( pl.position( j ));
+            }
+            sb.append( ',' );
+        }
+        return sb.toString();
+    }
+
+    static PostingsList decodeText( String str ) {
+        PostingsList pl = new PostingsList();
+        for ( String posting : str.split( "," )) {
+            String[] e = posting.split( ":" );
+            int docID = Integer.parseInt( e[0] );
+            for ( int j=1; j<e.length; j++ ) {
+                pl.insert( docID, Integer.parseInt( e[j] ));
+            }
+        }
+        return pl;
+    }
+
+
+    /** Encodes all lists in both formats and times decoding them. */
+    void run( int repetitions ) {
+        ArrayList<String> text = new ArrayList<String>();
+        ArrayList<byte[][]> binary = new ArrayList<byte[][]>();
+        long textBytes = 0, binaryBytes = 0;
+        for ( PostingsList pl : postings.values() ) {
+            String t = encodeText( pl );
+            byte[][] b = PersistentHashedIndex.encode( pl );
+            text.add( t );
+            binary.add( b );
+            textBytes += t.getBytes().length;
+            binaryBytes += b[0].length + b[1].length;
+        }
+        System.err.println( postings.size() + " terms in " + lastDocID + " documents" );
+        System.err.println( String.format( "Text format:   %,d bytes", textBytes ));
+        System.err.println( String.format( "Binary format: %,d bytes (%.1f%%)", binaryBytes, 100.0 * binaryBytes / textBytes ));
+
+        long sink = 0;
+        double textTime = Double.MAX_VALUE, binaryTime = Double.MAX_VALUE, docsTime = Double.MAX_VALUE;
+        for ( int r=0; r<repetitions; r++ ) {
+            long start = System.nanoTime();
+            for ( String t : text ) {
+                sink += decodeText( new String( t.getBytes() )).size();
+            }
+            textTime = Math.min( textTime, ( System.nanoTime() - start ) / 1e6 );
+            start = System.nanoTime();
+            for ( byte[][] b : binary ) {
+                sink += PersistentHashedIndex.decode( ByteBuffer.wrap( b[0] ), ByteBuffer.wrap( b[1] )).size();
+            }
+            binaryTime = Math.min( binaryTime, ( System.nanoTime() - start ) / 1e6 );
+            start = System.nanoTime();
+            for ( byte[][] b : binary ) {
+                sink += PersistentHashedIndex.decode( ByteBuffer.wrap( b[0] ), null ).size();
+            }
+            docsTime = Math.min( docsTime, ( System.nanoTime() - start ) / 1e6 );
+        }
+        System.err.println( String.format( "Decoding all lists, best of %d: text %.1f ms, binary %.1f ms (%.1fx faster)",
+                                           repetitions, textTime, binaryTime, textTime / binaryTime ));
+        System.err.println( String.format( "Decoding docIDs and term frequencies only: %.1f ms", docsTime ));
+        if ( sink == 42 ) System.err.println();
+    }
+
+
+    /** Prints usage information. */
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -d <dirname> : directory to be indexed (mandatory)" );
+        System.err.println( "  -p <filename> : name of the file containing regular expressions for non-standard words (optional)" );
+        System.err.println( "  -n <number> : number of timed repetitions (optional, default 5)" );
+    }
+
+
+    /** Main */
+    public static void main( String[] args ) {
+        PostingsBenchmark b = new PostingsBenchmark();
+        String dirname = null;
+        int repetitions = 5;
+        int i=0;
+        while ( i<args.length ) {
+            if ( args[i].equals( "-d" ) && i+1<args.length ) {
+                dirname = args[i+1];
+                i += 2;
+            } else if ( args[i].equals( "-p" ) && i+1<args.length ) {
+                b.patternsfile = args[i+1];
+                i += 2;
+            } else if ( args[i].equals( "-n" ) && i+1<args.length ) {
+                repetitions = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else {
+                System.err.println( "Unrecognized parameter: " + args[i] );
+                printHelpMessage();
+                return;
+            }
+        }
+        if ( dirname == null ) {
+            printHelpMessage();
+            return;
+        }
+        b.processFiles( new File( dirname ));
+        b.run( repetitions );
+    }
+}
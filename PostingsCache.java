@@ -0,0 +1,257 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ *   A cache of decoded postings lists, bounded by an estimate of the heap
+ *   bytes they use.
+ *
+ *   The cache is split into segments by the hash of the term, each one an
+ *   LRU map with its own lock, so that concurrent queries seldom wait for
+ *   each other. Eviction is frequency-aware (TinyLFU): a count-min sketch
+ *   records how often each term is requested, and a new list only replaces
+ *   the least recently used one if its term has been requested more often.
+ *   This keeps the hot terms of a skewed query log in the cache even when
+ *   many rare terms pass through it.
+ *
+ *   Cached lists are shared between queries and must not be modified.
+ */
+public class PostingsCache {
+
+    /** Number of independently locked segments. */
+    static final int SEGMENTS = 16;
+
+    /** Number of rows of the frequency sketch. */
+    static final int SKETCH_DEPTH = 4;
+
+    /** Frequencies saturate at this count. */
+    static final int MAX_FREQUENCY = 15;
+
+    /** The segments of the cache. */
+    final Segment[] segments = new Segment[SEGMENTS];
+
+    /** The count-min sketch of term frequencies, SKETCH_DEPTH rows of <code>width</code> counters. */
+    final int[] sketch;
+
+    /** Number of counters per row of the sketch (a power of two). */
+    final int width;
+
+    /** Number of frequency increments since the sketch was last halved. */
+    int samples = 0;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder rejections = new LongAdder();
+
+
+    /**
+     *  Creates a cache holding postings lists of about <code>maxBytes</code>
+     *  heap bytes in total.
+     */
+    public PostingsCache( long maxBytes ) {
+        for ( int i=0; i<SEGMENTS; i++ ) {
+            segments[i] = new Segment( maxBytes / SEGMENTS );
+        }
+        // Assume an average list of a few hundred bytes to size the sketch
+        long entries = Math.max( 1024, Math.min( 1 << 22, maxBytes / 256 ));
+        width = Integer.highestOneBit( (int)entries );
+        sketch = new int[SKETCH_DEPTH * width];
+    }
+
+
+    /** An LRU map from terms to postings lists, with its byte count. */
+    static class Segment {
+
+        final LinkedHashMap<String,PostingsList> map = new LinkedHashMap<String,PostingsList>( 16, 0.75f, true );
+
+        final long maxBytes;
+
+        long bytes = 0;
+
+        Segment( long maxBytes ) {
+            this.maxBytes = maxBytes;
+        }
+    }
+
+
+    /**
+     *  Estimates the heap bytes used by a cached list and its term. The
+     *  positions are counted from the term frequencies, so that the estimate
+     *  stays the same when a list decodes its positions after it was cached.
+     */
+    static long bytes( String term, PostingsList pl ) {
+        long positions = 0;
+        for ( int i=0; i<pl.size(); i++ ) {
+            positions += pl.tf( i );
+        }
+        return 160 + 2 * term.length() + 12L * pl.size() + 4L * positions;
+    }
+
+
+    /**
+     *  Returns false if a list whose encoded data takes the given number of
+     *  bytes is certainly too large to be cached. A decoded list never takes
+     *  fewer bytes than its encoding, so large lists need not be decoded
+     *  only to be rejected.
+     */
+    public boolean mayFit( String term, long encodedBytes ) {
+        return 160 + 2 * term.length() + encodedBytes <= segment( term ).maxBytes;
+    }
+
+
+    private Segment segment( String term ) {
+        int h = term.hashCode();
+        return segments[( h ^ ( h >>> 16 )) & ( SEGMENTS - 1 )];
+    }
+
+
+    /**
+     *  Returns the cached postings for a term, or null if they are not cached.
+     */
+    public PostingsList get( String term ) {
+        increment( term );
+        Segment s = segment( term );
+        PostingsList pl;
+        synchronized ( s ) {
+            pl = s.map.get( term );
+        }
+        if ( pl != null ) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return pl;
+    }
+
+
+    /**
+     *  Offers the postings of a term to the cache. If the cache is full, the
+     *  list is only admitted if its term is requested more often than the
+     *  least recently used term, which is then evicted.
+     */
+    public void put( String term, PostingsList pl ) {
+        long size = bytes( term, pl );
+        Segment s = segment( term );
+        if ( size > s.maxBytes ) {
+            rejections.increment();
+            return;
+        }
+        int frequency = frequency( term );
+        synchronized ( s ) {
+            if ( s.map.containsKey( term )) {
+                return;
+            }
+            // Compare with the least recently used term before evicting anything
+            if ( s.bytes + size > s.maxBytes && !s.map.isEmpty() ) {
+                String victim = s.map.keySet().iterator().next();
+                if ( frequency( victim ) >= frequency ) {
+                    rejections.increment();
+                    return;
+                }
+            }
+            Iterator<Map.Entry<String,PostingsList>> it = s.map.entrySet().iterator();
+            while ( s.bytes + size > s.maxBytes && it.hasNext() ) {
+                Map.Entry<String,PostingsList> e = it.next();
+                s.bytes -= bytes( e.getKey(), e.getValue() );
+                it.remove();
+                evictions.increment();
+            }
+            s.map.put( term, pl );
+            s.bytes += size;
+        }
+    }
+
+
+    /** Empties the cache, e.g. when the index has been rewritten. */
+    public void clear() {
+        for ( Segment s : segments ) {
+            synchronized ( s ) {
+                s.map.clear();
+                s.bytes = 0;
+            }
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+    //
+    //  The frequency sketch. Updates are not synchronized; a lost
+    //  increment only makes the estimate slightly less accurate.
+
+
+    private int index( int row, int h ) {
+        h *= 0x9E3779B9 + 2 * row;
+        return row * width + (( h ^ ( h >>> 15 )) & ( width - 1 ));
+    }
+
+    private void increment( String term ) {
+        int h = term.hashCode();
+        for ( int row=0; row<SKETCH_DEPTH; row++ ) {
+            int i = index( row, h );
+            if ( sketch[i] < MAX_FREQUENCY ) {
+                sketch[i]++;
+            }
+        }
+        // Halve all counters now and then, so that old popularity fades
+        if ( ++samples >= 10 * width ) {
+            samples = 0;
+            for ( int i=0; i<sketch.length; i++ ) {
+                sketch[i] >>= 1;
+            }
+        }
+    }
+
+    /** Returns the estimated number of recent requests for a term. */
+    int frequency( String term ) {
+        int h = term.hashCode();
+        int min = MAX_FREQUENCY;
+        for ( int row=0; row<SKETCH_DEPTH; row++ ) {
+            min = Math.min( min, sketch[index( row, h )] );
+        }
+        return min;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /** Returns the fraction of lookups that found their postings in the cache. */
+    public double hitRatio() {
+        long h = hits(), total = h + misses();
+        return total == 0 ? 0 : (double)h / total;
+    }
+
+    /** Returns the estimated number of heap bytes used by the cached lists. */
+    public long bytes() {
+        long total = 0;
+        for ( Segment s : segments ) {
+            synchronized ( s ) {
+                total += s.bytes;
+            }
+        }
+        return total;
+    }
+
+    public String toString() {
+        return String.format( "postings cache: %d hits, %d misses (%.1f%% hits), %d evictions, %d rejected, %d KB",
+                              hits(), misses(), 100 * hitRatio(), evictions.sum(), rejections.sum(), bytes() / 1024 );
+    }
+}
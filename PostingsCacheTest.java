@@ -0,0 +1,85 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+
+
+/**
+ *  Indexes a directory into a PersistentHashedIndex and runs the same
+ *  intersection query twice, checking that the second run reads its
+ *  postings lists from the postings cache. The query results are not
+ *  cached, so both runs search the index. The index is written to the
+ *  directory "index", which must exist.
+ */
+public class PostingsCacheTest {
+
+    String filename = null;
+    String query = null;
+
+
+    /** Returns true if the second run of the query hit the postings cache. */
+    public boolean run() {
+        PersistentHashedIndex index = new PersistentHashedIndex();
+        new Indexer( index, null, null, 1 ).processFiles( new File( filename ), true );
+        index.cleanup();
+
+        Searcher searcher = new Searcher( index, null );
+        searcher.cache = null;
+        PostingsCache cache = index.getCache();
+        PostingsList first = searcher.search( new Query( query ), QueryType.INTERSECTION_QUERY, RankingType.TF_IDF );
+        long hits = cache.hits();
+        PostingsList second = searcher.search( new Query( query ), QueryType.INTERSECTION_QUERY, RankingType.TF_IDF );
+        long secondHits = cache.hits() - hits;
+        System.err.println( cache );
+
+        int terms = new Query( query ).size();
+        if ( first == null || second == null || first.size() != second.size() ) {
+            System.err.println( "The query \"" + query + "\" found no documents, or different ones on the second run." );
+            return false;
+        }
+        if ( secondHits < terms ) {
+            System.err.println( "The second run hit the cache " + secondHits + " times for " + terms + " terms." );
+            return false;
+        }
+        System.err.println( "The second run found " + second.size() + " documents with " + secondHits + " cache hits." );
+        return true;
+    }
+
+
+    /** Prints usage information. */
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -f <filename> : name of file or directory to be indexed (mandatory)" );
+        System.err.println( "  -q <query> : the intersection query, e.g. \"the of\" (mandatory)" );
+    }
+
+
+    /** Main */
+    public static void main( String[] args ) {
+        PostingsCacheTest t = new PostingsCacheTest();
+        int i=0;
+        while ( i<args.length ) {
+            if ( i+1 < args.length && args[i].equals( "-f" )) {
+                t.filename = args[i+1];
+            } else if ( i+1 < args.length && args[i].equals( "-q" )) {
+                t.query = args[i+1];
+            } else {
+                System.err.println( "Unrecognized parameter: " + args[i] );
+                printHelpMessage();
+                return;
+            }
+            i += 2;
+        }
+        if ( t.filename == null || t.query == null ) {
+            printHelpMessage();
+            return;
+        }
+        if ( !t.run() ) {
+            System.exit( 1 );
+        }
+    }
+}
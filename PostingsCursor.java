@@ -0,0 +1,53 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+
+/**
+ *   Iterates over the postings of a term in increasing docID order,
+ *   without necessarily decoding the whole postings list.
+ *
+ *   A new cursor is positioned before its first posting, with docID -1.
+ */
+public abstract class PostingsCursor {
+
+    /** The docID of a cursor that has passed its last posting. */
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /**
+     *  Returns the docID of the current posting, -1 if the cursor has not
+     *  been moved yet, or NO_MORE_DOCS if it has passed the last posting.
+     */
+    public abstract int docID();
+
+    /** Moves to the next posting and returns its docID. */
+    public abstract int nextDoc();
+
+    /**
+     *  Moves to the first posting whose docID is at least
+     *  <code>target</code> and returns its docID. The cursor never moves
+     *  backwards, so if the current docID is already at least
+     *  <code>target</code> it stays where it is.
+     */
+    public abstract int advance( int target );
+
+    /** Returns the term frequency of the current posting. */
+    public abstract int tf();
+
+    /** Returns the jth position of the current posting, for j less than tf(). */
+    public abstract int position( int j );
+
+    /** Returns the number of postings (the document frequency). */
+    public abstract int size();
+
+    /**
+     *  Returns an upper bound of tf / document length over the postings
+     *  (see {@link PostingsList#maxWeight}), or infinity if it is not known.
+     */
+    public double maxWeight() {
+        return Double.POSITIVE_INFINITY;
+    }
+}
@@ -7,17 +7,17 @@
 
 package ir;
 
-import java.util.HashMap;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.StringTokenizer;
 import java.io.Serializable;
 
+/**
+ *  A single posting, as returned by {@link PostingsList#get}. The postings
+ *  lists themselves are stored column by column, not as PostingsEntries.
+ */
 public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
 
     public int docID;
     public double score = 0;
-    ArrayList<Integer> positions;
+    int[] positions;
     /**
      *  PostingsEntries are compared by their score (only relevant
      *  in ranked retrieval).
@@ -33,11 +33,6 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
     public PostingsEntry(int docID, double score){
     	 this.docID = docID;
 	     this.score = score;
-       this.positions = new ArrayList<Integer>();
-    }
-
-    public void addOffset(int offset){
-      this.positions.add(offset);
     }
 
 }
@@ -7,37 +7,402 @@
 
 package ir;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Supplier;
 
+/**
+ *   A postings list stored column by column in growable primitive arrays:
+ *   the docIDs, the term frequency of each posting, and the positions of
+ *   all postings one run after the other.
+ *
+ *   Postings are appended in increasing docID order. Ranked results also
+ *   carry a score per posting; the score column is only allocated for them.
+ *
+ *   A list read from a PersistentHashedIndex first has only docIDs and
+ *   term frequencies. Its positions are read and decoded the first time
+ *   they are asked for, so queries that never look at positions never pay
+ *   for them.
+ */
 public class PostingsList {
 
-    /** The postings list */
-    public ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>();
+    /** Initial capacity of the columns. Most terms occur in very few documents. */
+    static final int INITIAL_CAPACITY = 2;
+
+    /** The docIDs of the postings. */
+    int[] docIDs = new int[INITIAL_CAPACITY];
 
-    public ArrayList<Integer> containedDocs = new ArrayList<Integer>();
+    /** The number of positions of each posting. */
+    int[] tfs = new int[INITIAL_CAPACITY];
+
+    /** Index in <code>positions</code> of the first position of each posting. */
+    int[] offsets = new int[INITIAL_CAPACITY];
+
+    /** The positions of all postings. */
+    int[] positions = new int[INITIAL_CAPACITY];
+
+    /** The scores of the postings, or null if this is not a ranked result. */
+    double[] scores = null;
+
+    /** Number of postings in this list. */
+    int size = 0;
+
+    /** Number of positions in this list. */
+    int numPositions = 0;
+
+    /**
+     *  An upper bound of tf / document length over the postings, or
+     *  infinity if it is not known. Ranked search uses it to skip documents
+     *  that cannot score high enough.
+     */
+    double maxWeight = Double.POSITIVE_INFINITY;
+
+    /** Supplies the encoded positions of this list until they have been decoded, then null. */
+    volatile Supplier<ByteBuffer> positionsSource = null;
 
 
     /** Number of postings in this list. */
     public int size() {
-    return list.size();
+        return size;
     }
 
-    /** Returns the ith posting. */
+    /** Total number of positions in this list. */
+    public int numPositions() {
+        loadPositions();
+        return numPositions;
+    }
+
+    /** Returns the docID of the ith posting. */
+    public int docID( int i ) {
+        return docIDs[i];
+    }
+
+    /** Returns the term frequency of the ith posting. */
+    public int tf( int i ) {
+        return tfs[i];
+    }
+
+    /** Returns the score of the ith posting. */
+    public double score( int i ) {
+        return scores == null ? 0 : scores[i];
+    }
+
+    /**
+     *  Returns the index of the first position of the ith posting. Its
+     *  positions are <code>position( j )</code> for <code>j</code> from here
+     *  up to (but not including) <code>positionsStart( i ) + tf( i )</code>.
+     */
+    public int positionsStart( int i ) {
+        loadPositions();
+        return offsets[i];
+    }
+
+    /** Returns the position stored at index j (see {@link #positionsStart}). */
+    public int position( int j ) {
+        loadPositions();
+        return positions[j];
+    }
+
+    /**
+     *  Returns a copy of the ith posting. This allocates, so it is meant
+     *  for displaying results rather than for searching.
+     */
     public PostingsEntry get( int i ) {
-    return list.get( i );
+        PostingsEntry entry = new PostingsEntry( docIDs[i], score( i ));
+        loadPositions();
+        if ( numPositions > 0 ) {
+            entry.positions = Arrays.copyOfRange( positions, offsets[i], offsets[i] + tfs[i] );
+        }
+        return entry;
+    }
+
+    /**
+     *  Returns the index of the posting for docID, or a negative value if
+     *  there is none.
+     */
+    public int indexOf( int docID ) {
+        return Arrays.binarySearch( docIDs, 0, size, docID );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Records an occurrence of the term at the given offset in document
+     *  docID, which must not be smaller than the last docID in this list.
+     */
+    public void insert( int docID, int offset ) {
+        if ( size == 0 || docIDs[size-1] != docID ) {
+            if ( size > 0 && docID < docIDs[size-1] ) {
+                throw new IllegalArgumentException( "docID " + docID + " inserted after " + docIDs[size-1] );
+            }
+            newPosting( docID );
+        }
+        if ( numPositions == positions.length ) {
+            positions = Arrays.copyOf( positions, grow( numPositions ));
+        }
+        positions[numPositions++] = offset;
+        tfs[size-1]++;
+    }
+
+    /**
+     *  Appends a posting without positions, e.g. when the positions are not
+     *  needed or are stored elsewhere. A list has either positions for all
+     *  its postings or for none.
+     */
+    public void addPosting( int docID, int tf ) {
+        newPosting( docID );
+        tfs[size-1] = tf;
+    }
+
+    /**
+     *  Appends a scored result. Results may be appended in any order.
+     */
+    public void addEntry( int docID, double score ) {
+        newPosting( docID );
+        if ( scores == null ) {
+            scores = new double[docIDs.length];
+        }
+        scores[size-1] = score;
+    }
+
+    /**
+     *  Appends a copy of the ith posting of another list, including its positions.
+     */
+    public void addPosting( PostingsList other, int i ) {
+        other.loadPositions();
+        newPosting( other.docIDs[i] );
+        int tf = other.tfs[i];
+        ensurePositions( numPositions + tf );
+        System.arraycopy( other.positions, other.offsets[i], positions, numPositions, tf );
+        numPositions += tf;
+        tfs[size-1] = tf;
+        if ( other.scores != null ) {
+            if ( scores == null ) {
+                scores = new double[docIDs.length];
+            }
+            scores[size-1] = other.scores[i];
+        }
+    }
+
+    /**
+     *  Appends all postings of another list, whose docIDs must all be
+     *  larger than the docIDs in this list.
+     */
+    public void append( PostingsList other ) {
+        other.loadPositions();
+        int n = size + other.size;
+        if ( n > docIDs.length ) {
+            resize( n );
+        }
+        System.arraycopy( other.docIDs, 0, docIDs, size, other.size );
+        System.arraycopy( other.tfs, 0, tfs, size, other.size );
+        for ( int i=0; i<other.size; i++ ) {
+            offsets[size+i] = other.offsets[i] + numPositions;
+        }
+        ensurePositions( numPositions + other.numPositions );
+        System.arraycopy( other.positions, 0, positions, numPositions, other.numPositions );
+        size = n;
+        numPositions += other.numPositions;
+    }
+
+    /**
+     *  Sorts the postings by decreasing score, ties by increasing docID.
+     *  The positions stay attached to their postings.
+     */
+    public void sortByScore() {
+        if ( scores != null ) {
+            sort( 0, size - 1 );
+        }
     }
 
-    public void insert(int docID, double score, int offset){
-        if(containedDocs.contains(docID)){  //O(n), do better?
-          int i = containedDocs.indexOf(docID);
-          PostingsEntry entry = list.get(i);
-          entry.addOffset(offset);
+
+    /**
+     *  Computes maxWeight from the lengths of the documents, indexed by docID.
+     */
+    public void setMaxWeight( int[] docLengths ) {
+        double max = 0;
+        for ( int i=0; i<size; i++ ) {
+            int length = docIDs[i] < docLengths.length ? docLengths[docIDs[i]] : 0;
+            max = length > 0 ? Math.max( max, (double)tfs[i] / length ) : Double.POSITIVE_INFINITY;
+            if ( max == Double.POSITIVE_INFINITY ) {
+                break;
+            }
+        }
+        maxWeight = max;
+    }
+
+    /** Returns the bound set by {@link #setMaxWeight}. */
+    public double maxWeight() {
+        return maxWeight;
+    }
+
+
+    /**
+     *  Decodes the positions of a list that has only docIDs and term
+     *  frequencies so far. The positions of each posting are stored one
+     *  after the other as variable-byte coded gaps.
+     */
+    void loadPositions() {
+        if ( positionsSource == null ) {
+            return;
+        }
+        synchronized ( this ) {
+            if ( positionsSource == null ) {
+                return;
+            }
+            ByteBuffer buf = positionsSource.get();
+            int total = 0;
+            for ( int i=0; i<size; i++ ) {
+                total += tfs[i];
+            }
+            int[] offsets = new int[docIDs.length];
+            int[] positions = new int[Math.max( INITIAL_CAPACITY, total )];
+            int k = 0;
+            for ( int i=0; i<size; i++ ) {
+                offsets[i] = k;
+                int pos = 0;
+                for ( int j=0; j<tfs[i]; j++ ) {
+                    pos += PersistentHashedIndex.readVB( buf );
+                    positions[k++] = pos;
+                }
+            }
+            this.offsets = offsets;
+            this.positions = positions;
+            numPositions = total;
+            positionsSource = null;
+        }
+    }
+
+
+    /**
+     *  Returns a cursor over this list.
+     */
+    public PostingsCursor cursor() {
+        return new Cursor();
+    }
+
+
+    /**
+     *  A cursor over the postings of this list. It advances by galloping
+     *  search: it probes 1, 2, 4, ... postings ahead until it passes the
+     *  target, and then does a binary search over the last step.
+     */
+    class Cursor extends PostingsCursor {
+
+        /** Index of the current posting. */
+        int i = -1;
+
+        public int docID() {
+            return i < 0 ? -1 : i < size ? docIDs[i] : NO_MORE_DOCS;
+        }
+
+        public int nextDoc() {
+            if ( i < size ) {
+                i++;
+            }
+            return docID();
+        }
+
+        public int advance( int target ) {
+            if ( docID() >= target ) {
+                return docID();
+            }
+            int lo = i + 1;
+            int step = 1;
+            while ( lo + step < size && docIDs[lo + step] < target ) {
+                lo += step;
+                step <<= 1;
+            }
+            int hi = Math.min( size, lo + step + 1 );
+            int k = Arrays.binarySearch( docIDs, lo, hi, target );
+            i = k >= 0 ? k : -k - 1;
+            return docID();
+        }
+
+        public int tf() {
+            return tfs[i];
+        }
+
+        public int position( int j ) {
+            loadPositions();
+            return positions[offsets[i] + j];
         }
-        else{
-          PostingsEntry entry = new PostingsEntry(docID, score);
-          list.add(entry);
-          entry.addOffset(offset);
-          containedDocs.add(docID);
+
+        public int size() {
+            return size;
+        }
+
+        public double maxWeight() {
+            return maxWeight;
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    private void newPosting( int docID ) {
+        if ( size == docIDs.length ) {
+            resize( grow( size ));
+        }
+        docIDs[size] = docID;
+        tfs[size] = 0;
+        offsets[size] = numPositions;
+        size++;
+    }
+
+    private static int grow( int n ) {
+        return Math.max( INITIAL_CAPACITY, n + ( n >> 1 ) + 1 );
+    }
+
+    private void resize( int capacity ) {
+        docIDs = Arrays.copyOf( docIDs, capacity );
+        tfs = Arrays.copyOf( tfs, capacity );
+        offsets = Arrays.copyOf( offsets, capacity );
+        if ( scores != null ) {
+            scores = Arrays.copyOf( scores, capacity );
+        }
+    }
+
+    private void ensurePositions( int capacity ) {
+        if ( capacity > positions.length ) {
+            positions = Arrays.copyOf( positions, Math.max( capacity, grow( positions.length )));
+        }
+    }
+
+    /** Returns true if posting i should come before posting j in score order. */
+    private boolean before( int i, int j ) {
+        return scores[i] > scores[j] || ( scores[i] == scores[j] && docIDs[i] < docIDs[j] );
+    }
+
+    private void swap( int i, int j ) {
+        int t = docIDs[i]; docIDs[i] = docIDs[j]; docIDs[j] = t;
+        t = tfs[i]; tfs[i] = tfs[j]; tfs[j] = t;
+        t = offsets[i]; offsets[i] = offsets[j]; offsets[j] = t;
+        double s = scores[i]; scores[i] = scores[j]; scores[j] = s;
+    }
+
+    /** Quicksort of the postings between lo and hi (inclusive) in score order. */
+    private void sort( int lo, int hi ) {
+        while ( lo < hi ) {
+            swap( lo + ( hi - lo ) / 2, hi );
+            int p = lo;
+            for ( int i=lo; i<hi; i++ ) {
+                if ( before( i, hi )) {
+                    swap( i, p++ );
+                }
+            }
+            swap( p, hi );
+            // Recurse into the smaller part to bound the stack depth
+            if ( p - lo < hi - p ) {
+                sort( lo, p - 1 );
+                lo = p + 1;
+            } else {
+                sort( p + 1, hi );
+                hi = p - 1;
+            }
         }
     }
 }
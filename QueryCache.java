@@ -0,0 +1,205 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+
+
+/**
+ *   Caches the top results of recent queries, so that a repeated query is
+ *   answered without searching the index again.
+ *
+ *   A query is looked up by its normalized terms, its query and ranking
+ *   type, and the pagerank weight of combined ranking. The k best docIDs
+ *   and scores are kept in plain arrays, and serve any later request for
+ *   at most as many results. The least recently used results are dropped
+ *   when the cache holds more than its memory budget.
+ *
+ *   All results belong to one version of the index, the documents and the
+ *   pageranks. When any of them changes, the cache is emptied the next time
+ *   it is used.
+ */
+public class QueryCache {
+
+    /** Approximate number of bytes taken by an entry besides its key and arrays. */
+    static final int ENTRY_OVERHEAD = 128;
+
+    /** Returned for a query that is cached as having found nothing, i.e. null results. */
+    public static final TopK NOT_FOUND = new TopK( 0 );
+
+    /** The cached results of one query. */
+    static class Results {
+        final boolean found;
+        final int[] docIDs;
+        final double[] scores;
+        final int totalHits;
+        final boolean totalHitsExact;
+        final long bytes;
+
+        Results( boolean found, int[] docIDs, double[] scores, int totalHits, boolean totalHitsExact, long bytes ) {
+            this.found = found;
+            this.docIDs = docIDs;
+            this.scores = scores;
+            this.totalHits = totalHits;
+            this.totalHitsExact = totalHitsExact;
+            this.bytes = bytes;
+        }
+
+        /** Returns true if these are all the results there are. */
+        boolean complete() {
+            return totalHitsExact && docIDs.length == totalHits;
+        }
+    }
+
+    /** The maximum number of bytes of cached results. */
+    final long maxBytes;
+
+    /** The results by key, least recently used first. */
+    private final LinkedHashMap<String,Results> entries = new LinkedHashMap<String,Results>( 16, 0.75f, true );
+
+    /** The number of bytes of cached results. */
+    private long bytes = 0;
+
+    /** The version of the index, documents and pageranks that the results belong to. */
+    private long indexGeneration = -1;
+    private int numDocs = -1;
+    private long pagerankVersion = -1;
+
+    /** Number of lookups that were answered, and that were not. */
+    private long hits = 0;
+    private long misses = 0;
+
+
+    /** Creates a cache holding at most maxBytes bytes of results. */
+    public QueryCache( long maxBytes ) {
+        this.maxBytes = maxBytes;
+    }
+
+
+    /**
+     *  Returns the key of a query: the terms in order, or sorted without
+     *  repetitions for intersection queries, whose results do not depend on
+     *  them, together with everything else that the results depend on.
+     */
+    public static String key( Query query, QueryType queryType, RankingType rankingType, double prInfluence ) {
+        ArrayList<String> terms = new ArrayList<String>();
+        for ( Query.QueryTerm t : query.queryterm ) {
+            terms.add( t.term );
+        }
+        if ( queryType == QueryType.INTERSECTION_QUERY ) {
+            terms = new ArrayList<String>( new TreeSet<String>( terms ));
+        }
+        StringBuilder key = new StringBuilder();
+        key.append( queryType.ordinal() );
+        if ( queryType == QueryType.RANKED_QUERY ) {
+            key.append( ' ' ).append( rankingType.ordinal() );
+            if ( rankingType == RankingType.COMBINATION ) {
+                key.append( ' ' ).append( Double.doubleToLongBits( prInfluence ));
+            }
+        }
+        for ( String term : terms ) {
+            key.append( '\u0000' ).append( term );
+        }
+        return key.toString();
+    }
+
+
+    /**
+     *  Returns the cached results for the k best documents of a query,
+     *  NOT_FOUND if the query is cached as having found nothing, or null if
+     *  it is not cached. The cached results are dropped first if the version
+     *  of the index, documents or pageranks is not theirs.
+     */
+    public synchronized TopK get( String key, int k, long indexGeneration, long pagerankVersion ) {
+        validate( indexGeneration, pagerankVersion );
+        Results r = entries.get( key );
+        if ( r == null || ( k > r.docIDs.length && !r.complete() )) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if ( !r.found ) {
+            return NOT_FOUND;
+        }
+        return TopK.of( k, r.docIDs, r.scores, Math.min( k, r.docIDs.length ), r.totalHits, r.totalHitsExact );
+    }
+
+    /**
+     *  Caches the results of a query for the given version of the index,
+     *  documents and pageranks.
+     *  @param top The results, or null if the query found nothing.
+     */
+    public synchronized void put( String key, TopK top, long indexGeneration, long pagerankVersion ) {
+        validate( indexGeneration, pagerankVersion );
+        PostingsList pl = top == null ? null : top.results();
+        int n = pl == null ? 0 : pl.size();
+        int[] docIDs = new int[n];
+        double[] scores = new double[n];
+        for ( int i=0; i<n; i++ ) {
+            docIDs[i] = pl.docID( i );
+            scores[i] = pl.score( i );
+        }
+        long size = ENTRY_OVERHEAD + 2L * key.length() + 12L * n;
+        if ( size > maxBytes ) {
+            return;
+        }
+        Results old = entries.put( key, new Results( top != null, docIDs, scores, top == null ? 0 : top.totalHits(), top == null || top.totalHitsExact(), size ));
+        if ( old != null ) {
+            bytes -= old.bytes;
+        }
+        bytes += size;
+        Iterator<Results> it = entries.values().iterator();
+        while ( bytes > maxBytes && it.hasNext() ) {
+            bytes -= it.next().bytes;
+            it.remove();
+        }
+    }
+
+
+    /** Returns the share of lookups that were answered from the cache. */
+    public synchronized double hitRatio() {
+        return hits + misses == 0 ? 0 : (double)hits / ( hits + misses );
+    }
+
+    /** Returns the number of lookups answered from the cache. */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /** Returns the number of lookups not answered from the cache. */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /** Returns the number of bytes of cached results. */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /** Drops all cached results. */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Drops the cached results if they belong to another version. */
+    private void validate( long indexGeneration, long pagerankVersion ) {
+        int numDocs = Index.docNames.size();
+        if ( indexGeneration != this.indexGeneration || numDocs != this.numDocs || pagerankVersion != this.pagerankVersion ) {
+            clear();
+            this.indexGeneration = indexGeneration;
+            this.numDocs = numDocs;
+            this.pagerankVersion = pagerankVersion;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Arrays;
+
+
+/**
+ *   Accumulates the scores of documents while a query is evaluated term at
+ *   a time, without allocating anything per document.
+ *
+ *   A query that may match a large part of the collection uses a dense
+ *   array indexed by docID. A selective query uses an open-addressing hash
+ *   table sized for the postings it reads. Either way, the documents are
+ *   also recorded in the order they were first added, so that the results
+ *   can be read and the accumulator reset without touching the rest of it.
+ *   An accumulator can be reused by one thread for one query after another.
+ */
+public class ScoreAccumulator {
+
+    /**
+     *  The dense array is used when at least one document in this many may
+     *  match the query.
+     */
+    static final int DENSE_RATIO = 16;
+
+    /** Marks an empty slot of the hash table. */
+    static final int EMPTY = -1;
+
+    /** The scores of the dense array, indexed by docID. */
+    double[] dense = new double[0];
+
+    /** The query in which each docID of the dense array was last added. */
+    int[] stamps = new int[0];
+
+    /** The current query, so that older scores in the dense array are ignored. */
+    int stamp = 0;
+
+    /** The docIDs and scores of the hash table, whose size is a power of two. */
+    int[] keys = new int[0];
+    double[] values = new double[0];
+
+    /** The hash of a docID is the top bits of its product with a constant, shifted down by this. */
+    int shift = 32;
+
+    /** True if the current query uses the hash table. */
+    boolean sparse = false;
+
+    /** The documents in the order they were first added. */
+    int[] docIDs = new int[16];
+
+    /** The slot of each document in the hash table. */
+    int[] slots = new int[16];
+
+    /** Number of documents added. */
+    int size = 0;
+
+
+    /**
+     *  Prepares for a new query over documents with docIDs below numDocs,
+     *  which reads at most numPostings postings.
+     */
+    public void reset( int numDocs, long numPostings ) {
+        if ( sparse ) {
+            for ( int i=0; i<size; i++ ) {
+                keys[slots[i]] = EMPTY;
+            }
+        }
+        size = 0;
+        sparse = numPostings * DENSE_RATIO < numDocs;
+        if ( sparse ) {
+            int capacity = Integer.highestOneBit( (int)Math.max( 8, 2 * numPostings - 1 )) << 1;
+            if ( keys.length < capacity ) {
+                keys = new int[capacity];
+                values = new double[capacity];
+                Arrays.fill( keys, EMPTY );
+                shift = Integer.numberOfLeadingZeros( capacity ) + 1;
+            }
+        } else {
+            if ( dense.length < numDocs ) {
+                dense = new double[numDocs];
+                stamps = new int[numDocs];
+                stamp = 0;
+            }
+            if ( ++stamp == 0 ) {
+                // The stamps have wrapped around, so the old ones must go
+                Arrays.fill( stamps, 0 );
+                stamp = 1;
+            }
+        }
+    }
+
+    /**
+     *  Adds a value to the score of a document. The first value added to a
+     *  document becomes its score.
+     */
+    public void add( int docID, double value ) {
+        if ( sparse ) {
+            int mask = keys.length - 1;
+            int slot = ( docID * 0x9E3779B9 ) >>> shift;
+            while ( keys[slot] != docID ) {
+                if ( keys[slot] == EMPTY ) {
+                    keys[slot] = docID;
+                    values[slot] = value;
+                    record( docID, slot );
+                    return;
+                }
+                slot = ( slot + 1 ) & mask;
+            }
+            values[slot] += value;
+        } else if ( stamps[docID] != stamp ) {
+            stamps[docID] = stamp;
+            dense[docID] = value;
+            record( docID, 0 );
+        } else {
+            dense[docID] += value;
+        }
+    }
+
+    /** Returns the number of documents added since the last reset. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the docID of the ith document added. */
+    public int docID( int i ) {
+        return docIDs[i];
+    }
+
+    /** Returns the score of the ith document added. */
+    public double score( int i ) {
+        return sparse ? values[slots[i]] : dense[docIDs[i]];
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    private void record( int docID, int slot ) {
+        if ( size == docIDs.length ) {
+            docIDs = Arrays.copyOf( docIDs, 2 * size );
+            slots = Arrays.copyOf( slots, 2 * size );
+        }
+        docIDs[size] = docID;
+        slots[size] = slot;
+        size++;
+    }
+}
@@ -29,9 +29,17 @@ public class SearchGUI extends JFrame {
     /**  The query posed by the user. */
     private Query query;
 
-    /**  The results of a search query. */
+    /**  The best results of a search query, as many as have been asked for. */
     private PostingsList results;
 
+    /**  The total number of documents matching the search query, or a lower bound of it. */
+    private int totalHits;
+    private boolean totalHitsExact;
+
+    /**  The query and ranking type the results were searched with. */
+    private QueryType resultsQueryType;
+    private RankingType resultsRankingType;
+
     /**  The query type (either intersection, phrase, or ranked). */
     QueryType queryType = QueryType.INTERSECTION_QUERY;
 
@@ -66,6 +74,7 @@ public class SearchGUI extends JFrame {
     JRadioButtonMenuItem intersectionItem = new JRadioButtonMenuItem( "Intersection query" );
     JRadioButtonMenuItem phraseItem = new JRadioButtonMenuItem( "Phrase query" );
     JRadioButtonMenuItem rankedItem = new JRadioButtonMenuItem( "Ranked retrieval" );
+    JRadioButtonMenuItem booleanItem = new JRadioButtonMenuItem( "Boolean query" );
     JRadioButtonMenuItem tfidfItem = new JRadioButtonMenuItem( "tf-idf" );
     JRadioButtonMenuItem pagerankItem = new JRadioButtonMenuItem( "PageRank" );
     JRadioButtonMenuItem combinationItem = new JRadioButtonMenuItem( "Combination" );
@@ -103,12 +112,14 @@ public class SearchGUI extends JFrame {
         optionsMenu.add( intersectionItem );
         optionsMenu.add( phraseItem );
         optionsMenu.add( rankedItem );
+        optionsMenu.add( booleanItem );
         rankingMenu.add( tfidfItem );
         rankingMenu.add( pagerankItem );
         rankingMenu.add( combinationItem );
         queries.add( intersectionItem );
         queries.add( phraseItem );
         queries.add( rankedItem );
+        queries.add( booleanItem );
         ranking.add( tfidfItem );
         ranking.add( pagerankItem );
         ranking.add( combinationItem );
@@ -154,12 +165,15 @@ public class SearchGUI extends JFrame {
                     }
                     query.relevanceFeedback( results, relevant, engine );
                 }
-                // Search and print results. Access to the index is synchronized since
-                // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
+                // Search and print results. Searches read a published snapshot of
+                // the index, so they need no lock even while files are being indexed.
                 long startTime = System.currentTimeMillis();
-                synchronized ( engine.indexLock ) {
-                    results = engine.searcher.search( query, queryType, rankingType );
+                try {
+                    search( MAX_RESULTS );
+                } catch ( IllegalArgumentException exc ) {
+                    // A boolean query that does not parse
+                    displayInfoText( exc.getMessage() );
+                    return;
                 }
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 // Display the first few results + a button to see all results.
@@ -225,6 +239,13 @@ public class SearchGUI extends JFrame {
             };
         rankedItem.addActionListener( setRankedQuery );
 
+        Action setBooleanQuery = new AbstractAction() {
+            public void actionPerformed( ActionEvent e ) {
+                queryType = QueryType.BOOLEAN_QUERY;
+            }
+            };
+        booleanItem.addActionListener( setBooleanQuery );
+
         Action setTfidfRanking = new AbstractAction() {
             public void actionPerformed( ActionEvent e ) {
                 rankingType = RankingType.TF_IDF;
@@ -263,6 +284,19 @@ public class SearchGUI extends JFrame {
         repaint();
     }
 
+    /**
+     *  Searches for the k best results of the current query with the
+     *  current query and ranking types.
+     */
+    void search( int k ) {
+        resultsQueryType = queryType;
+        resultsRankingType = rankingType;
+        TopK top = engine.searcher.search( query, resultsQueryType, resultsRankingType, k );
+        results = top == null ? null : top.results();
+        totalHits = top == null ? 0 : top.totalHits();
+        totalHitsExact = top == null || top.totalHitsExact();
+    }
+
     /**
      *  Displays the results in the results window.
      *  @param maxResultsToDisplay The results list is cut off after this many results
@@ -270,12 +304,20 @@ public class SearchGUI extends JFrame {
      *  @param elapsedTime Shows how long time it took to compute the results.
      */
     void displayResults( int maxResultsToDisplay, double elapsedTime ) {
-        displayInfoText( String.format( "Found %d matching document(s) in %.3f seconds", results.size(), elapsedTime ));
+        // Only the best results shown so far have been kept, so showing more
+        // searches again for as many as will be shown.
+        if ( maxResultsToDisplay > results.size() && ( results.size() < totalHits || !totalHitsExact )) {
+            TopK top = engine.searcher.search( query, resultsQueryType, resultsRankingType, maxResultsToDisplay );
+            results = top.results();
+            totalHits = top.totalHits();
+            totalHitsExact = top.totalHitsExact();
+        }
+        displayInfoText( String.format( "Found %s%d matching document(s) in %.3f seconds", totalHitsExact ? "" : "at least ", totalHits, elapsedTime ));
         box = new JCheckBox[maxResultsToDisplay];
         int i;
         for ( i=0; i<results.size() && i<maxResultsToDisplay; i++ ) {
             String description = i + ". " + displayableFileName( engine.index.docNames.get( results.get(i).docID ));
-            if ( queryType == QueryType.RANKED_QUERY ) {
+            if ( resultsQueryType == QueryType.RANKED_QUERY ) {
                 description += "   " + String.format( "%.5f", results.get(i).score );
             }
             box[i] = new JCheckBox();
@@ -344,7 +386,7 @@ public class SearchGUI extends JFrame {
             resultWindow.add( result );
         }
         // If there were many results, give the user an option to see all of them.
-        if ( i<results.size() ) {
+        if ( i<totalHits || !totalHitsExact ) {
             JPanel actionButtons = new JPanel();
             actionButtons.setLayout(new BoxLayout(actionButtons, BoxLayout.X_AXIS));
             actionButtons.setAlignmentX(Component.LEFT_ALIGNMENT);
@@ -362,12 +404,19 @@ public class SearchGUI extends JFrame {
 
             actionButtons.add(Box.createRigidArea(new Dimension(5,0)));
 
-            JButton displayAllBut = new JButton( "Display all " + results.size() + " results" );
+            JButton displayAllBut = new JButton( totalHitsExact ? "Display all " + totalHits + " results" : "Display all results" );
             displayAllBut.setFont( resultFont );
             actionButtons.add( displayAllBut );
             Action displayAll = new AbstractAction() {
                 public void actionPerformed( ActionEvent e ) {
-                    displayResults( results.size(), elapsedTime );
+                    if ( !totalHitsExact ) {
+                        // Collecting all results counts all of them
+                        TopK top = engine.searcher.search( query, resultsQueryType, resultsRankingType, Integer.MAX_VALUE );
+                        results = top.results();
+                        totalHits = top.totalHits();
+                        totalHitsExact = true;
+                    }
+                    displayResults( totalHits, elapsedTime );
                 }
             };
             displayAllBut.addActionListener( displayAll );
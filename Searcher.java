@@ -13,6 +13,9 @@ import java.io.*;
 
 /**
 *  Searches an index for results of a query.
+*
+*  A Searcher keeps no state between queries, so many threads can search
+*  with it at the same time.
 */
 public class Searcher {
 
@@ -22,19 +25,36 @@ public class Searcher {
   /** The k-gram index to be searched by this Searcher */
   KGramIndex kgIndex;
 
-// Map from document name to pagerank score
-  HashMap<String, Double> pageranks = new HashMap<String, Double>();
-
   double PRInfluence = 0.9999;
 
-  PostingsList pagerankPostings = new PostingsList();
-  PostingsList tfIdfPostings =  new PostingsList();
+  /** Score accumulators, one per searching thread, reused from query to query. */
+  final ThreadLocal<ScoreAccumulator> accumulators = ThreadLocal.withInitial(ScoreAccumulator::new);
 
+  /** The document lengths by docID, and the number of documents they were built from. */
+  volatile int[] lengths = new int[0];
+  volatile int lengthsCount = 0;
 
-  /** Constructor */
+
+  /** The pagerank scores of the documents. */
+  PageRankScores pageranks;
+
+  /** Default size in bytes of the cache of query results. */
+  static final long CACHE_SIZE = 16L * 1024 * 1024;
+
+  /** The results of recent queries, or null if they are not cached. */
+  QueryCache cache = new QueryCache(CACHE_SIZE);
+
+
+  /** Constructor, with the pagerank scores read from the file "pagerank" */
   public Searcher( Index index, KGramIndex kgIndex ) {
+    this(index, kgIndex, new PageRankScores("pagerank"));
+  }
+
+  /** Constructor */
+  public Searcher( Index index, KGramIndex kgIndex, PageRankScores pageranks ) {
     this.index = index;
     this.kgIndex = kgIndex;
+    this.pageranks = pageranks;
   }
 
   /**
@@ -45,28 +65,179 @@ public class Searcher {
     if(queryType == queryType.INTERSECTION_QUERY){return intersection_search(query);}
     else if (queryType == queryType.PHRASE_QUERY){return phrase_search(query);}
     else if (queryType == queryType.RANKED_QUERY){return ranked_search(query, rankingType);}
+    else if (queryType == QueryType.BOOLEAN_QUERY){return boolean_search(query);}
     else{return null;}
   }
 
+  /**
+   *  Searches the index for the k best postings matching the query, and
+   *  counts the matching documents. Ranked queries keep only k candidates
+   *  while they score, and may skip documents that cannot be among them;
+   *  the other query types keep their first k documents.
+   *  @return The collected results, or null if a query term is not in the index.
+   */
+  public TopK search( Query query, QueryType queryType, RankingType rankingType, int k) {
+    return search(query, queryType, rankingType, k, PRInfluence);
+  }
+
+  /**
+   *  Searches the index for the k best postings matching the query, with
+   *  the given weight of the pagerank in combined ranking. A repeated query
+   *  is answered from the cache, unless the index or the pageranks have
+   *  changed since.
+   */
+  public TopK search( Query query, QueryType queryType, RankingType rankingType, int k, double prInfluence) {
+    QueryCache cache = this.cache;
+    if(cache == null){
+      return search_index(query, queryType, rankingType, k, prInfluence);
+    }
+    String key = QueryCache.key(query, queryType, rankingType, prInfluence);
+    long generation = index.getGeneration();
+    long version = pageranks.version();
+    TopK top = cache.get(key, k, generation, version);
+    if(top == null){
+      top = search_index(query, queryType, rankingType, k, prInfluence);
+      cache.put(key, top, generation, version);
+      return top;
+    }
+    return top == QueryCache.NOT_FOUND ? null : top;
+  }
+
+  /**
+   *  Searches the index itself for the k best postings matching the query.
+   */
+  TopK search_index( Query query, QueryType queryType, RankingType rankingType, int k, double prInfluence) {
+    TopK top = new TopK(k);
+    if(queryType == QueryType.RANKED_QUERY){
+      rank(query, rankingType, prInfluence, top);
+      return top.totalHits() == 0 ? null : top;
+    }
+    PostingsList all = search(query, queryType, rankingType);
+    if(all == null){
+      return null;
+    }
+    for(int i = 0; i < all.size(); i++){
+      top.offer(all.docID(i), all.score(i));
+    }
+    return top;
+  }
+
+  /**
+   *  A cursor is moved by galloping (advance) when its list is at least
+   *  this many times longer than the shortest list, and by stepping
+   *  through it posting by posting otherwise.
+   */
+  static final int GALLOP_RATIO = 8;
+
+  /**
+   *  Finds the documents that contain all query terms. The terms are
+   *  ordered by document frequency: the rarest list proposes candidate
+   *  documents, and each other list is checked in order of increasing
+   *  length, so most candidates are rejected by the cheapest lists. The
+   *  search stops as soon as any list runs out.
+   */
   public PostingsList intersection_search(Query query){
     if(query.queryterm.size() == 1){
       String token = query.queryterm.get(0).term;
       return index.getPostings(token);
     }
     else{
-      ArrayList<PostingsList> terms = new ArrayList<PostingsList>();
+      // Opening a cursor only reads the list's size and skip table
+      LinkedHashMap<String,PostingsCursor> opened = new LinkedHashMap<String,PostingsCursor>();
       for(int i=0; i<query.queryterm.size(); i++){
-        terms.add(index.getPostings(query.queryterm.get(i).term));
+        String term = query.queryterm.get(i).term;
+        if(!opened.containsKey(term)){
+          PostingsCursor cursor = index.getCursor(term);
+          if(cursor == null){
+            return null;
+          }
+          opened.put(term, cursor);
+        }
       }
-      PostingsList result = new PostingsList();
-      result = terms.get(0);
-      for(int i = 1; i < terms.size(); i++){
-        result = intersect(result, terms.get(i));
+      PostingsCursor[] cursors = opened.values().toArray(new PostingsCursor[0]);
+      Arrays.sort(cursors, (a, b) -> Integer.compare(a.size(), b.size()));
+      boolean[] gallop = new boolean[cursors.length];
+      for(int i = 1; i < cursors.length; i++){
+        gallop[i] = cursors[i].size() / Math.max(1, cursors[0].size()) >= GALLOP_RATIO;
       }
-      return result;
+
+      PostingsList answer = new PostingsList();
+      PostingsCursor lead = cursors[0];
+      int docID = lead.nextDoc();
+      outer:
+      while(docID != PostingsCursor.NO_MORE_DOCS){
+        for(int i = 1; i < cursors.length; i++){
+          int other = gallop[i] ? cursors[i].advance(docID) : step(cursors[i], docID);
+          if(other == PostingsCursor.NO_MORE_DOCS){
+            break outer;
+          }
+          if(other != docID){
+            docID = lead.advance(other);
+            continue outer;
+          }
+        }
+        answer.addPosting(docID, lead.tf());
+        docID = lead.nextDoc();
+      }
+      return answer;
+    }
+  }
+
+  /**
+   *  Moves a cursor posting by posting to the first docID of at least
+   *  target. This is cheaper than advance() when the target is close.
+   */
+  int step(PostingsCursor cursor, int target){
+    int docID = cursor.docID();
+    while(docID < target){
+      docID = cursor.nextDoc();
+    }
+    return docID;
+  }
+
+  /**
+   *  Intersects postings lists by zig-zagging between their cursors: every
+   *  cursor is advanced to the largest docID seen so far, which skips whole
+   *  blocks of a long list whenever the other lists have no document there.
+   *  The result has the docIDs and term frequencies of the first cursor.
+   */
+  public PostingsList intersect(PostingsCursor[] cursors){
+    PostingsList answer = new PostingsList();
+    int docID = align(cursors, 0);
+    while(docID != PostingsCursor.NO_MORE_DOCS){
+      answer.addPosting(docID, cursors[0].tf());
+      docID = align(cursors, docID + 1);
+    }
+    return answer;
+  }
+
+  /**
+   *  Advances the cursors to the first docID of at least target that all of
+   *  them contain, and returns it (or NO_MORE_DOCS).
+   */
+  static int align(PostingsCursor[] cursors, int target){
+    int docID = cursors[0].advance(target);
+    outer:
+    while(docID != PostingsCursor.NO_MORE_DOCS){
+      for(int i = 1; i < cursors.length; i++){
+        int other = cursors[i].advance(docID);
+        if(other != docID){
+          docID = cursors[0].advance(other);
+          continue outer;
+        }
+      }
+      return docID;
     }
+    return docID;
   }
 
+  /**
+   *  Finds the documents where the query terms occur next to each other,
+   *  in order. Each distinct term is looked up once, and its cursor is
+   *  shared by all its occurrences in the phrase. The cursors are aligned
+   *  on the documents that contain all terms, and positions are only read
+   *  for those documents.
+   */
   public PostingsList phrase_search(Query query){
 
     if(query.queryterm.size() == 1){
@@ -74,124 +245,152 @@ public class Searcher {
       return index.getPostings(token);
     }
     else{
+      HashMap<String,PostingsCursor> fetched = new HashMap<String,PostingsCursor>();
+      PostingsCursor[] cursors = new PostingsCursor[query.queryterm.size()];
+      for(int i=0; i<cursors.length; i++){
+        String term = query.queryterm.get(i).term;
+        cursors[i] = fetched.get(term);
+        if(cursors[i] == null){
+          cursors[i] = index.getCursor(term);
+          if(cursors[i] == null){
+            return null;
+          }
+          fetched.put(term, cursors[i]);
+        }
+      }
       PostingsList answer = new PostingsList();
-      ArrayList<PostingsList> terms = new ArrayList<PostingsList>();
-      for(int i=0; i<query.queryterm.size(); i++){
-        terms.add(index.getPostings(query.queryterm.get(i).term));
+      int[] next = new int[cursors.length];
+      int docID = align(cursors, 0);
+      while(docID != PostingsCursor.NO_MORE_DOCS){
+        if(phrase_occurs(cursors, next)){
+          answer.addEntry(docID, 0);
+        }
+        docID = align(cursors, docID + 1);
       }
-      PostingsList result = new PostingsList();
-      result = terms.get(0);
-      for(int i = 1; i < terms.size(); i++){
-        result = intersect(result, terms.get(i));
+      return answer;
+    }
+  }
+
+  /**
+   *  Returns true if the current postings of the cursors have positions
+   *  p, p+1, ..., p+n-1 for some p. The positions of all terms are merged
+   *  in one pass: a candidate start p is checked term by term, and the
+   *  first term without position p+i gives the next candidate. The index
+   *  of the next position of each term is kept in <code>next</code> and
+   *  only moves forward.
+   */
+  static boolean phrase_occurs(PostingsCursor[] cursors, int[] next){
+    Arrays.fill(next, 0);
+    int start = cursors[0].position(0);
+    int i = 0;
+    while(true){
+      PostingsCursor c = cursors[i];
+      int tf = c.tf();
+      while(next[i] < tf && c.position(next[i]) < start + i){
+        next[i]++;
       }
-      //docIDs of all documents intersecting the query terms
-      ArrayList<Integer> commonDocs = new ArrayList<Integer>();
-      for(int i = 0; i < result.list.size(); i++){
-        commonDocs.add(result.get(i).docID);
+      if(next[i] == tf){
+        return false;
       }
-      ArrayList<Integer> finalresult = new ArrayList<Integer>();
-      for(int i = 0; i < commonDocs.size(); i++){
-        int docID = commonDocs.get(i);
-        ArrayList<Integer> positions1 = null;
-        for(int j = 0; j < query.queryterm.size() -1; j++){
-          int posInOffset1 = 0;
-          int posInOffset2 = 0;
-          if(positions1 == null){
-            for(int k = 0; k < index.getPostings(query.queryterm.get(j).term).list.size(); k++ ){
-              if(index.getPostings(query.queryterm.get(j).term).list.get(k).docID == docID){ //optimera här
-                posInOffset1 = k;
-              }
-            }
-            positions1 = index.getPostings(query.queryterm.get(j).term).list.get(posInOffset1).positions;
-          }
-          for(int k = 0; k < index.getPostings(query.queryterm.get(j+1).term).list.size(); k++ ){
-            if(index.getPostings(query.queryterm.get(j+1).term).list.get(k).docID == docID){
-              posInOffset2 = k;
-          }
+      int pos = c.position(next[i]);
+      if(pos == start + i){
+        if(++i == cursors.length){
+          return true;
         }
-        ArrayList<Integer> positions2 = index.getPostings(query.queryterm.get(j+1).term).list.get(posInOffset2).positions;
-        positions2 = phrase_find(positions1, positions2);
-        if (positions2.isEmpty()){
-          break;
-        }
-        else if(j== query.queryterm.size() -2){
-          finalresult.add(docID);
-        }
-        positions1 = positions2;
+      }
+      else{
+        start = pos - i;
+        i = 0;
       }
     }
-    for(int f: finalresult){
-      answer.insert(f,0,0);
+  }
+
+  /**
+   *  Finds the documents that match a boolean query, e.g.
+   *  <code>(zombie or vampire) and not "attack of the"</code>. The query
+   *  compiles to a tree of cursors, and only the matching documents are
+   *  collected from its root.
+   *  @throws IllegalArgumentException if the query is not well-formed.
+   */
+  public PostingsList boolean_search(Query query){
+    StringBuilder text = new StringBuilder();
+    for(Query.QueryTerm t : query.queryterm){
+      text.append(t.term).append(' ');
     }
-    return answer;
+    PostingsCursor cursor = new BooleanQuery(text.toString()).cursor(index, doc_lengths().length);
+    PostingsList answer = new PostingsList();
+    while(cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS){
+      answer.addEntry(cursor.docID(), 0);
     }
+    return answer;
   }
 
   public PostingsList intersect (PostingsList p1, PostingsList p2){
     int i = 0;
     int j = 0;
     PostingsList answer = new PostingsList();
-    ArrayList<PostingsEntry> list1 = p1.list;
-    ArrayList<PostingsEntry> list2 = p2.list;
-
-    while((i < list1.size()) && (j < list2.size())){
-      PostingsEntry entry1 = list1.get(i);
-      PostingsEntry entry2 = list2.get(j);
-      if(entry1.docID == entry2.docID){
-        answer.list.add(entry1);
+
+    while((i < p1.size()) && (j < p2.size())){
+      int docID1 = p1.docID(i);
+      int docID2 = p2.docID(j);
+      if(docID1 == docID2){
+        answer.addPosting(p1, i);
         i++;
         j++;
       }
-      else if(entry1.docID < entry2.docID){i++;}
+      else if(docID1 < docID2){i++;}
       else{j++;}
     }
     return answer;
   }
 
-  public ArrayList<Integer> phrase_find(ArrayList<Integer> positions1, ArrayList<Integer> positions2){
-    ArrayList<Integer> newpositions2 = new ArrayList<Integer>();
-    for(int i = 0; i < positions1.size(); i++){
-      for(int j = 0; j < positions2.size(); j++){
-        if((positions2.get(j) - positions1.get(i)) > 1){
-          break;
-        }
-        if((positions2.get(j)-positions1.get(i)) == 1 ){
-          newpositions2.add(positions2.get(j));
-        }
+  /**
+   *  Returns the positions in positions2 that directly follow a position in
+   *  positions1. Both arrays are sorted, so one linear two-pointer pass
+   *  suffices.
+   */
+  public int[] phrase_find(int[] positions1, int[] positions2){
+    int[] newpositions2 = new int[positions2.length];
+    int n = 0;
+    int i = 0;
+    int j = 0;
+    while(i < positions1.length && j < positions2.length){
+      int diff = positions2[j] - positions1[i];
+      if(diff == 1){
+        newpositions2[n++] = positions2[j];
+        i++;
+        j++;
       }
+      else if(diff > 1){i++;}
+      else{j++;}
     }
-    return newpositions2;
+    return Arrays.copyOf(newpositions2, n);
   }
 
+  /**
+   *  Returns all documents matching the query, best first.
+   */
   public PostingsList ranked_search(Query query, RankingType rankingType){
-    if(rankingType == RankingType.TF_IDF){
-      PostingsList ret = ranked_search_tf_idf(query);
-      Collections.sort(ret.list);
-      return ret;
-    }
-    if(rankingType == RankingType.PAGERANK){
-      PostingsList ret = ranked_search_pagerank(query);
-      Collections.sort(ret.list);
-      return ret;
-    }
-    else{
-      pagerankPostings = ranked_search_pagerank(query);
-      tfIdfPostings = ranked_search_tf_idf(query);
-      PostingsList ret = new PostingsList();
-      for(int i = 0; i < tfIdfPostings.list.size(); i++){
-        PostingsEntry entry = tfIdfPostings.list.get(i);
-        double tfIdf = entry.score;
-        double pagerank = pagerankPostings.list.get(i).score;
-        double combinedScore = ((double)1-PRInfluence)*tfIdf + PRInfluence*pagerank;
-        entry.score = combinedScore;
-        ret.list.add(entry);
-      }
-      Collections.sort(ret.list);
-      return ret;
-    }
+    return ranked_search(query, rankingType, PRInfluence);
+  }
+
+  /**
+   *  Returns all documents matching the query, best first, with the given
+   *  weight of the pagerank in combined ranking.
+   */
+  public PostingsList ranked_search(Query query, RankingType rankingType, double prInfluence){
+    TopK top = new TopK(Integer.MAX_VALUE);
+    rank(query, rankingType, prInfluence, top);
+    return top.results();
   }
 
-  public PostingsList ranked_search_tf_idf(Query query){
+  /**
+   *  Scores the documents that contain at least one query term and offers
+   *  them to top. Ranking for the k best skips documents it can prove to be
+   *  outside them; otherwise the scores are accumulated term at a time. A
+   *  combined score is (1-prInfluence) * tf_idf + prInfluence * pagerank.
+   */
+  void rank(Query query, RankingType rankingType, double prInfluence, TopK top){
 
     //isolate unique terms in the query and number
     //of occurences of each term in the query
@@ -209,140 +408,211 @@ public class Searcher {
       }
     }
 
-    //Find idf for each unique term in the query
-    int N = index.docNames.size();
-    ArrayList<Double> idfs = new ArrayList<Double>();
-    for(String term: uniqueQueries){
-      int df = index.getPostings(term).list.size();
-      double idf = Math.log(N/df);
-      idfs.add(idf);
+    //Find idf for each unique term in the query. A term that is not in
+    //the index matches no documents and adds nothing to the scores.
+    int N = Index.docNames.size();
+    int n = uniqueQueries.size();
+    PostingsCursor[] cursors = new PostingsCursor[n];
+    double[] idfs = new double[n];
+    long postings = 0;
+    for(int t = 0; t < n; t++){
+      cursors[t] = index.getCursor(uniqueQueries.get(t));
+      if(cursors[t] != null){
+        idfs[t] = Math.log(N/cursors[t].size());
+        postings += cursors[t].size();
+      }
     }
 
     //Find tf_idf vector for query
-    ArrayList<Double> Q = new ArrayList<Double>();
+    double[] Q = new double[n];
     int lenQ = query.queryterm.size();
-    for(int i = 0; i < uniqueQueries.size(); i++){
+    for(int i = 0; i < n; i++){
       int tf = tfQuery.get(i);
-      double idf = idfs.get(i);
-      double tfIdf = tf * (idf/lenQ);
-      Q.add(tfIdf);
+      Q[i] = tf * (idfs[i]/lenQ);
     }
 
-    //Combine all unique documents containing at leas one of the query terms
-    // and merge those containing more than one term
-    PostingsList all = new PostingsList();
-    ArrayList<Integer> docIDs = new ArrayList<Integer>();
-    for(String term: uniqueQueries){
-      for(PostingsEntry entry: index.getPostings(term).list){
-        int docID = entry.docID;
-        if(!docIDs.contains(docID)){
-          docIDs.add(docID);
-          entry.overlaps.put(term, entry.positions);
-          all.list.add(entry);
-        }
-        else{
-          for(PostingsEntry old: all.list){
-            if(old.docID == docID){
-              old.overlaps.put(term, entry.positions);
-              break;
-            }
-          }
-        }
-      }
-    }
+    PageRankScores.Resolved pageranks = rankingType == RankingType.TF_IDF ? null : this.pageranks.resolved();
 
-    //Compare tf_idf vector of query with tf_idf vector of each
-    //doc and assign scores
-    PostingsList ret = new PostingsList();
-    for(PostingsEntry entry: all.list){
-      PostingsEntry e = new PostingsEntry(entry.docID, tf_idf_score(entry, Q, idfs, uniqueQueries));
-      ret.list.add(e);
+    //Documents can only be skipped if fewer than all of them are wanted
+    if(top.k() < postings){
+      wand(cursors, Q, idfs, rankingType, prInfluence, pageranks, top);
+      return;
     }
-    return ret;
-  }
 
-  public PostingsList ranked_search_pagerank(Query query){
-    //isolate unique terms in the query
-    ArrayList<String> uniqueQueries = new ArrayList<String>();
-      for(int i = 0; i < query.queryterm.size(); i++){
-      String term = query.queryterm.get(i).term;
-      if(!uniqueQueries.contains(term)){
-        uniqueQueries.add(term);
+    ScoreAccumulator acc = accumulators.get();
+    accumulate(cursors, Q, idfs, postings, acc);
+
+    //Score each document: the accumulated tf_idf similarity, and/or its pagerank
+    for(int i = 0; i < acc.size(); i++){
+      int docID = acc.docID(i);
+      double tfIdf = acc.score(i) / n;
+      double score;
+      if(rankingType == RankingType.TF_IDF){
+        score = tfIdf;
+      }
+      else if(rankingType == RankingType.PAGERANK){
+        score = pagerank(pageranks.scores, docID);
+      }
+      else{
+        score = ((double)1-prInfluence)*tfIdf + prInfluence*pagerank(pageranks.scores, docID);
       }
+      top.offer(docID, score);
     }
+  }
 
-    //Combine all UNIQUE documents containing at leas one of the query terms
-    PostingsList all = new PostingsList();
-    ArrayList<Integer> docIDs = new ArrayList<Integer>();
-    for(String term: uniqueQueries){
-      for(PostingsEntry entry: index.getPostings(term).list){
-        int docID = entry.docID;
-        if(!docIDs.contains(docID)){
-          docIDs.add(docID);
-          all.list.add(entry);
-        }
+  /**
+   *  Adds Q_t * tf_idf of every posting of every query term to the score
+   *  of its document, one term after the other. The score of a document is
+   *  then its tf_idf similarity times the number of terms, summed in the
+   *  same order as tf_idf_score, so that both give exactly the same value.
+   */
+  void accumulate(PostingsCursor[] cursors, double[] Q, double[] idfs, long postings, ScoreAccumulator acc){
+    int[] lengths = doc_lengths();
+    acc.reset(lengths.length, postings);
+    for(int t = 0; t < cursors.length; t++){
+      PostingsCursor c = cursors[t];
+      if(c == null){
+        continue;
+      }
+      while(c.nextDoc() != PostingsCursor.NO_MORE_DOCS){
+        int docID = c.docID();
+        acc.add(docID, Q[t] * (c.tf() * (idfs[t]/lengths[docID])));
       }
     }
+  }
 
-    load_pageranks();
-
-    //Compare to pagerank file and assign scores for each document
-    PostingsList ret = new PostingsList();
-    for(PostingsEntry entry: all.list){
-      int docID = entry.docID;
-      String title = index.docNames.get(docID);
-      int i = title.lastIndexOf("/"); //ignore path name, need only doc name
-      double rank = pageranks.get(title.substring(i+1, title.length()));
-      PostingsEntry e = new PostingsEntry(entry.docID, rank);
-      ret.list.add(e);
+  /**
+   *  Returns the document lengths as an array indexed by docID. The array
+   *  is built again only when documents have been added since the last time.
+   */
+  int[] doc_lengths(){
+    int count = lengthsCount;
+    int[] lengths = this.lengths;
+    if(count != Index.docLengths.size()){
+      count = Index.docLengths.size();
+      lengths = Index.docLengthArray();
+      this.lengths = lengths;
+      lengthsCount = count;
     }
-    return ret;
+    return lengths;
   }
 
-  public void load_pageranks(){
-    String f = "pagerank";
-    BufferedReader reader = null;
-    try{
-      reader = new BufferedReader(new FileReader(f));
-      String line = null;
-      while((line = reader.readLine()) != null){
-        String[] strings = line.split(";");
-        pageranks.put(strings[0] , Double.valueOf(strings[1]));
+  /**
+   *  Scores the documents one docID at a time with the WAND algorithm. A
+   *  term can add at most Q_t * idf_t * maxWeight / |Q| to the tf_idf
+   *  similarity, where maxWeight is the largest tf/length in its postings
+   *  list, and the pagerank of the documents in a range of docIDs is
+   *  bounded by the largest of them.
+   *
+   *  The cursors are kept sorted by docID. A document between the ith
+   *  and the next cursor can only contain the terms of the first i+1, so
+   *  their bounds and the largest pagerank in that range bound its score.
+   *  The pivot is the first cursor whose range may score more than the
+   *  threshold of top: the documents before it cannot be among the k best,
+   *  so the cursors skip to it, and it is scored once all cursors before it
+   *  have reached it. The k best are the same as with exhaustive scoring,
+   *  but the skipped documents are not counted in totalHits.
+   */
+  void wand(PostingsCursor[] cursors, double[] Q, double[] idfs, RankingType rankingType, double prInfluence, PageRankScores.Resolved pageranks, TopK top){
+    //The weights of the tf_idf similarity and of the pagerank in the score
+    double tfIdfWeight = rankingType == RankingType.TF_IDF ? 1 : rankingType == RankingType.PAGERANK ? 0 : (double)1-prInfluence;
+    double prWeight = rankingType == RankingType.TF_IDF ? 0 : rankingType == RankingType.PAGERANK ? 1 : prInfluence;
+    int n = cursors.length;
+    int[] terms = new int[n];
+    double[] bounds = new double[n];
+    int m = 0;
+    for(int t = 0; t < n; t++){
+      if(cursors[t] != null && cursors[t].nextDoc() != PostingsCursor.NO_MORE_DOCS){
+        double weight = tfIdfWeight * Q[t] * idfs[t];
+        bounds[t] = weight == 0 ? 0 : weight * cursors[t].maxWeight() / n;
+        terms[m++] = t;
       }
-      reader.close();
-    }
-    catch (Exception e){
-      e.printStackTrace();
     }
-  }
-
-  public double tf_idf_score(PostingsEntry entry, ArrayList<Double> Q,ArrayList<Double> idfs, ArrayList<String> uniqueQueries){
-
-  //Compute tf_idf vector for this document
-    ArrayList<Double> D = new ArrayList<Double>();
-      for(int i = 0; i < uniqueQueries.size(); i++){
-      String term = uniqueQueries.get(i);
-      if(!entry.overlaps.containsKey(term)){
-        D.add(0.0);
+    int[] tfs = new int[n];
+    while(m > 0){
+      //Sort the terms by the docID of their cursors
+      for(int i = 1; i < m; i++){
+        int t = terms[i];
+        int j = i;
+        for(; j > 0 && cursors[terms[j-1]].docID() > cursors[t].docID(); j--){
+          terms[j] = terms[j-1];
+        }
+        terms[j] = t;
+      }
+      int docID = cursors[terms[0]].docID();
+      double threshold = top.threshold();
+      double bound = 0;
+      int pivot = -1;
+      for(int i = 0; i < m && pivot < 0; i++){
+        bound += bounds[terms[i]];
+        int from = cursors[terms[i]].docID();
+        int to = i + 1 < m ? cursors[terms[i+1]].docID() : PostingsCursor.NO_MORE_DOCS;
+        if(from == to){
+          continue;
+        }
+        double pagerank = prWeight == 0 ? 0 : prWeight * pageranks.max(from, to);
+        //Leave a margin for rounding, so that no document is wrongly skipped
+        if((bound + pagerank) * (1 + 1e-9) > threshold){
+          pivot = from;
+        }
+      }
+      if(pivot < 0){
+        //No remaining document can be among the k best
+        top.skip();
+        break;
+      }
+      int target = pivot;
+      if(pivot == docID){
+        double score;
+        if(rankingType == RankingType.PAGERANK){
+          score = pagerank(pageranks.scores, docID);
+        }
+        else{
+          Arrays.fill(tfs, 0);
+          for(int i = 0; i < m && cursors[terms[i]].docID() == docID; i++){
+            tfs[terms[i]] = cursors[terms[i]].tf();
+          }
+          double tfIdf = tf_idf_score(docID, tfs, Q, idfs);
+          score = rankingType == RankingType.TF_IDF ? tfIdf : ((double)1-prInfluence)*tfIdf + prInfluence*pagerank(pageranks.scores, docID);
+        }
+        top.offer(docID, score);
+        target = docID + 1;
       }
       else{
-        int tf = entry.overlaps.get(term).size();
-        int lenD =  index.docLengths.get(entry.docID);
-        double idf = idfs.get(i);
-        double tfIdfD = tf *(idf/lenD);
-        D.add(tfIdfD);
+        top.skip();
       }
+      //Move the cursors before the target to it, and drop the ones that are exhausted
+      int k = 0;
+      for(int i = 0; i < m; i++){
+        PostingsCursor c = cursors[terms[i]];
+        if(c.docID() >= target || c.advance(target) != PostingsCursor.NO_MORE_DOCS){
+          terms[k++] = terms[i];
+        }
+      }
+      m = k;
     }
-    return cosine_similarity(Q, D);
   }
 
-  public double cosine_similarity(ArrayList<Double> Q, ArrayList<Double> D){
-    int len = Q.size();
+  /**
+   *  Returns the pagerank of a document from the scores indexed by docID.
+   */
+  double pagerank(double[] pageranks, int docID){
+    return docID < pageranks.length ? pageranks[docID] : 0;
+  }
+
+  /**
+   *  Returns the cosine similarity of the tf_idf vector of a document, with
+   *  the given term frequencies of the query terms, and that of the query.
+   */
+  public double tf_idf_score(int docID, int[] tfs, double[] Q, double[] idfs){
     double sum = 0;
-    for(int i = 0; i < len; i++){
-      sum += Q.get(i) * D.get(i);
+    for(int i = 0; i < tfs.length; i++){
+      if(tfs[i] != 0){
+        int tf = tfs[i];
+        int lenD = Index.docLengths.get(docID);
+        sum += Q[i] * (tf * (idfs[i]/lenD));
+      }
     }
-    double score = sum/len;
-    return score;
+    return sum/Q.length;
   }
 }
@@ -0,0 +1,185 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Arrays;
+
+
+/**
+ *   Maps terms to consecutive int IDs, starting from 0.
+ *
+ *   The characters of all terms are stored one after the other in a
+ *   single array, and an open-addressing hash table maps them to their
+ *   IDs. A term can be looked up directly from the characters of a
+ *   buffer, e.g. the current token of a Tokenizer, so mapping a token that
+ *   has been seen before allocates nothing.
+ *
+ *   A dictionary is not thread-safe.
+ */
+public class TermDictionary {
+
+    /** Marks an empty slot of the hash table. */
+    static final int EMPTY = -1;
+
+    /** The characters of all terms, in the order of their IDs. */
+    char[] chars = new char[1024];
+
+    /** Number of characters used. */
+    int charsUsed = 0;
+
+    /** The characters of term i are from offsets[i] up to offsets[i+1]. */
+    int[] offsets = new int[65];
+
+    /** The hash of each term. */
+    int[] hashes = new int[64];
+
+    /** Number of terms. */
+    int size = 0;
+
+    /** The term IDs by hash slot. Its length is a power of two. */
+    int[] table = new int[128];
+
+
+    /** Creates an empty dictionary. */
+    public TermDictionary() {
+        Arrays.fill( table, EMPTY );
+    }
+
+
+    /**
+     *  Returns the ID of the term in chars from start up to start + length,
+     *  adding the term if it is new.
+     */
+    public int add( char[] buf, int start, int length ) {
+        int hash = hash( buf, start, length );
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        int id;
+        while (( id = table[slot] ) != EMPTY ) {
+            if ( hashes[id] == hash && equals( id, buf, start, length )) {
+                return id;
+            }
+            slot = ( slot + 1 ) & mask;
+        }
+        id = append( buf, start, length, hash );
+        table[slot] = id;
+        if ( 2 * size > table.length ) {
+            rehash();
+        }
+        return id;
+    }
+
+    /** Returns the ID of a term, adding it if it is new. */
+    public int add( String term ) {
+        return add( term.toCharArray(), 0, term.length() );
+    }
+
+    /** Returns the ID of a term, or -1 if it is not in the dictionary. */
+    public int find( CharSequence term ) {
+        int length = term.length();
+        int hash = 0;
+        if ( term instanceof String ) {
+            // The same hash, which a String caches
+            hash = term.hashCode();
+        } else {
+            for ( int i=0; i<length; i++ ) {
+                hash = 31 * hash + term.charAt( i );
+            }
+        }
+        hash = mix( hash );
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        int id;
+        outer:
+        while (( id = table[slot] ) != EMPTY ) {
+            if ( hashes[id] == hash && offsets[id + 1] - offsets[id] == length ) {
+                for ( int i=0, j=offsets[id]; i<length; i++, j++ ) {
+                    if ( chars[j] != term.charAt( i )) {
+                        slot = ( slot + 1 ) & mask;
+                        continue outer;
+                    }
+                }
+                return id;
+            }
+            slot = ( slot + 1 ) & mask;
+        }
+        return -1;
+    }
+
+    /** Returns the term with the given ID. */
+    public String term( int id ) {
+        return new String( chars, offsets[id], offsets[id + 1] - offsets[id] );
+    }
+
+    /** Returns the number of characters of the term with the given ID. */
+    public int length( int id ) {
+        return offsets[id + 1] - offsets[id];
+    }
+
+    /** Returns the number of terms. */
+    public int size() {
+        return size;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** The hash of String, with its bits spread so that the low ones can index the table. */
+    private static int hash( char[] buf, int start, int length ) {
+        int h = 0;
+        for ( int i=start; i<start+length; i++ ) {
+            h = 31 * h + buf[i];
+        }
+        return mix( h );
+    }
+
+    private static int mix( int h ) {
+        h *= 0x9E3779B9;
+        return h ^ ( h >>> 16 );
+    }
+
+    private boolean equals( int id, char[] buf, int start, int length ) {
+        int from = offsets[id];
+        if ( offsets[id + 1] - from != length ) {
+            return false;
+        }
+        for ( int i=0; i<length; i++ ) {
+            if ( chars[from + i] != buf[start + i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int append( char[] buf, int start, int length, int hash ) {
+        if ( charsUsed + length > chars.length ) {
+            chars = Arrays.copyOf( chars, Math.max( 2 * chars.length, charsUsed + length ));
+        }
+        if ( size == hashes.length ) {
+            offsets = Arrays.copyOf( offsets, 2 * size + 1 );
+            hashes = Arrays.copyOf( hashes, 2 * size );
+        }
+        System.arraycopy( buf, start, chars, charsUsed, length );
+        charsUsed += length;
+        hashes[size] = hash;
+        offsets[size + 1] = charsUsed;
+        return size++;
+    }
+
+    private void rehash() {
+        table = new int[2 * table.length];
+        Arrays.fill( table, EMPTY );
+        int mask = table.length - 1;
+        for ( int id=0; id<size; id++ ) {
+            int slot = hashes[id] & mask;
+            while ( table[slot] != EMPTY ) {
+                slot = ( slot + 1 ) & mask;
+            }
+            table[slot] = id;
+        }
+    }
+}
@@ -9,14 +9,7 @@ package ir;
 
 import java.io.Reader;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.util.List;
 import java.util.Arrays;
-import java.util.ArrayList;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-import java.util.regex.PatternSyntaxException;
 import java.lang.System;
 
 
@@ -50,14 +43,14 @@ public class Tokenizer {
      */
     public static final int BUFFER_LENGTH = 100001;
 
-    /** The reader from where tokens are read. */
+    /** The reader from where tokens are read, or null if the whole text is in @code{buf}. */
     Reader reader;
     
     /** 
      *  Characters are read @code{BUFFER_LENGTH} characters at a
-     *  time into @code{buf}.
+     *  time into @code{buf}, unless the whole text was given in it.
      */
-    char[] buf = new char[BUFFER_LENGTH];
+    char[] buf;
 
     /** The current position in the buffer. */
     int ptr = 0;
@@ -65,14 +58,27 @@ public class Tokenizer {
     /** Starting position of current token, or -1 if we're between tokens. */
     int token_start = -1;
 
-    /** The next tokens to emit. */
-    ArrayList<String> token_queue = new ArrayList<String>();
+    /**
+     *  The next tokens to emit, as a ring buffer of the offsets and lengths
+     *  of their characters in @code{queue_chars}. Tokens are only queued
+     *  when the queue is empty, so the characters are then written from the
+     *  start again.
+     */
+    int[] queue_offsets = new int[16];
+    int[] queue_lengths = new int[16];
+    int queue_head = 0;
+    int queue_size = 0;
+    char[] queue_chars = new char[1024];
+    int queue_chars_used = 0;
+
+    /** The current token, as a view of @code{queue_chars}. */
+    final CharView current = new CharView();
 
     /** @code{true} if we've started reading tokens. */
     boolean started_reading = false;
 
-    /** The patterns matching non-standard words (e-mail addresses, etc.) */
-    ArrayList<Pattern> patterns = null;
+    /** Finds non-standard words (e-mail addresses, etc.), or null if there are no patterns. */
+    PatternMatcher.Finder patterns = null;
 
     /** Special characters (with diacritics) can be translated into these characters. */
     public static final char[] SPECIAL_CHAR_MAPPING = {
@@ -95,12 +101,31 @@ public class Tokenizer {
      *         for non-standard words (like dates, mail addresses, etc.).
      */
     public Tokenizer( Reader reader, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, String pattern_file ) {
+        this( new char[BUFFER_LENGTH], case_folding, remove_diacritics, remove_punctuation, pattern_file );
         this.reader = reader;
+    }
+
+
+    /**
+     *  Constructor for a text that is already in memory, e.g. read by a
+     *  @code{FileLoader}. The text is tokenized in place, without copying
+     *  it, and letters in it are normalized.
+     *  @param text The array holding the text, which must be longer than it.
+     *  @param length The length of the text.
+     */
+    public Tokenizer( char[] text, int length, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, String pattern_file ) {
+        this( text, case_folding, remove_diacritics, remove_punctuation, pattern_file );
+        text[length] = 0;
+    }
+
+
+    private Tokenizer( char[] buf, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, String pattern_file ) {
+        this.buf = buf;
         this.case_folding = case_folding;
         this.remove_diacritics = remove_diacritics;
         this.remove_punctuation = remove_punctuation;
         if ( pattern_file != null ) {
-            readPatterns( pattern_file );
+            patterns = PatternMatcher.forFile( pattern_file ).finder();
         }
     }
 
@@ -121,30 +146,6 @@ public class Tokenizer {
     }
 
 
-    /**
-     *  Read the patterns that match non-standard words  
-     */
-    private void readPatterns( String filename ) {
-        patterns = new ArrayList<Pattern>();
-        String line = null;
-        try {
-            BufferedReader in = new BufferedReader( new FileReader( filename ));
-            while (( line = in.readLine()) != null ) {
-                line = line.trim();
-                if ( !line.startsWith( "//" ) && line.length() > 0 ) {
-                    patterns.add( Pattern.compile( line ));
-                }
-            }
-        }
-        catch ( IOException e ) {
-            System.err.println( "Warning: IOException reading the regular expressions from file" );
-        }
-        catch ( PatternSyntaxException e ) {
-            System.err.println( "ERROR: Malformed regular expression: " + line );
-        }
-    }
-
-
     /** 
      *  Normalizes letters by converting to lower-case and possibly
      *  removing diacritics. This method is also used for checking
@@ -186,7 +187,7 @@ public class Tokenizer {
             readTokens();
             started_reading = true;
         }
-        if ( token_queue.size() == 0 ) 
+        if ( queue_size == 0 ) 
             return readTokens();
         else 
             return true;
@@ -198,15 +199,49 @@ public class Tokenizer {
      *  are no more tokens.
      */
     public String nextToken() throws IOException { 
-        if ( token_queue.size() == 0 ) {
-            if ( readTokens() )
-                return token_queue.remove( 0 );
-            else
-                return null;
+        return next() ? current.toString() : null;
+    }
+
+
+    /**
+     *  Moves to the next token, which is then given by @code{token()}.
+     *  Unlike @code{nextToken()}, this creates no objects per token.
+     *
+     *  @return @code{true} if there was a next token, and @code{false}
+     *  at the end of the input.
+     */
+    public boolean next() throws IOException {
+        if ( queue_size == 0 && !readTokens() ) {
+            return false;
         }
-        else {
-            return token_queue.remove( 0 );
+        current.set( queue_chars, queue_offsets[queue_head], queue_lengths[queue_head] );
+        queue_head = ( queue_head + 1 ) & ( queue_offsets.length - 1 );
+        queue_size--;
+        return true;
+    }
+
+
+    /**
+     *  @return the current token. The characters are reused, so the token
+     *  is only valid until the tokenizer is used again; call
+     *  @code{toString()} on it to keep it.
+     */
+    public CharSequence token() {
+        return current;
+    }
+
+
+    /**
+     *  Moves to the next token and looks it up in a term dictionary,
+     *  adding it if it is new.
+     *
+     *  @return the term ID of the token, or -1 at the end of the input.
+     */
+    public int nextTermID( TermDictionary dictionary ) throws IOException {
+        if ( !next() ) {
+            return -1;
         }
+        return dictionary.add( current.chars, current.start, current.length );
     }
 
 
@@ -239,15 +274,15 @@ public class Tokenizer {
                     ptr++;
                 }
             }
-            if ( ptr == BUFFER_LENGTH ) {
+            if ( ptr == buf.length ) {
                 // The buffer has been read, so refill it
                 if ( token_start >= 0 ) {
                     // We're in the middle of a token. Copy the parts
                     // of the token we have read already into the 
                     // beginning of the buffer.
-                    System.arraycopy( buf, token_start, buf, 0, BUFFER_LENGTH-token_start );
-                    refillBuffer( BUFFER_LENGTH-token_start );
-                    ptr = BUFFER_LENGTH-token_start;
+                    System.arraycopy( buf, token_start, buf, 0, buf.length-token_start );
+                    refillBuffer( buf.length-token_start );
+                    ptr = buf.length-token_start;
                     token_start = 0;
                 }
                 else {
@@ -271,26 +306,22 @@ public class Tokenizer {
         if ( token_start < 0 ) {
             return false;
         }
-        String s = new String( buf, token_start, ptr-token_start );
-        if ( patterns != null ) {
-            // Now let's see if the string s matches one of the patterns 
-            // for non-standard words
-            for ( Pattern p : patterns ) {
-                Matcher m = p.matcher( s );
-                if ( m.find() ) {
-                    // The string contains a non-standard word. First check the prefix 
-                    // before the matching substring, then add the non-standard word  
-                    // to the token queue, then check the remainder of the string.
-                    addStandardTokensToQueue( s.substring(0, m.start() ));
-                    token_queue.add( m.group() );
-                    token_start += m.end();
-                    addTokensToQueue();
-                    return true;
-                }
-            }
+        // Now let's see if the string contains a non-standard word,
+        // the leftmost match of any of the patterns
+        if ( patterns != null && patterns.find( buf, token_start, ptr )) {
+            // First check the prefix before the matching substring, then add
+            // the non-standard word to the token queue, then check the
+            // remainder of the string.
+            int start = patterns.start();
+            int end = patterns.end();
+            addStandardTokensToQueue( token_start, start );
+            addToQueue( start, end-start );
+            token_start = end;
+            addTokensToQueue();
+            return true;
         }
         // This string contains only standard words
-        return addStandardTokensToQueue( s );
+        return addStandardTokensToQueue( token_start, ptr );
     }
 
 
@@ -298,49 +329,125 @@ public class Tokenizer {
      *  Adds standard tokens (i.e. tokens not matching any regular
      *  expression) to the queue.
      */
-    private boolean addStandardTokensToQueue( String s ) {
-        // This string s does not match any specific pattern.
-        // Then split it, considering all punctuation symbols
+    private boolean addStandardTokensToQueue( int from, int to ) {
+        // The characters from 'from' up to 'to' do not match any specific
+        // pattern. Then split them, considering all punctuation symbols
         // to be separators.
         boolean tokens_found = false;
-        StringBuffer smallbuf = new StringBuffer();
-        for ( int i=0; i<s.length(); i++ ) {
-            if ( punctuation( s.charAt( i ))) {
+        int start = from;
+        for ( int i=from; i<to; i++ ) {
+            if ( punctuation( buf[i] )) {
                 // The string before the punctuation sign is a token
                 // unless it is empty
-                String t = smallbuf.toString();
-                if ( t.length()>0 ) {
-                    token_queue.add( t );
-                    smallbuf = new StringBuffer();
+                if ( i>start ) {
+                    addToQueue( start, i-start );
                     tokens_found = true;
                 }
                 if ( !remove_punctuation ) {
-                    token_queue.add( "" + s.charAt( i ));
+                    addToQueue( i, 1 );
                     tokens_found = true;
                 }
-            }
-            else {
-                smallbuf.append( s.charAt( i ));
+                start = i+1;
             }
         }
         // The string after the last punctuation sign is a token
         // unless it is empty
-        String t = smallbuf.toString();
-        if ( t.length()>0 ) {
-            token_queue.add( t );
+        if ( to>start ) {
+            addToQueue( start, to-start );
             tokens_found = true;
         }   
         return tokens_found;
     }
+
+
+    /**
+     *  Adds the token in @code{buf} from @code{start} with the given length
+     *  to the end of the queue, copying its characters.
+     */
+    private void addToQueue( int start, int length ) {
+        if ( queue_size == 0 ) {
+            queue_head = 0;
+            queue_chars_used = 0;
+        }
+        if ( queue_size == queue_offsets.length ) {
+            // The queue is full, so unroll it into arrays twice as long
+            int[] offsets = new int[2*queue_size];
+            int[] lengths = new int[2*queue_size];
+            for ( int i=0; i<queue_size; i++ ) {
+                offsets[i] = queue_offsets[( queue_head+i ) & ( queue_size-1 )];
+                lengths[i] = queue_lengths[( queue_head+i ) & ( queue_size-1 )];
+            }
+            queue_offsets = offsets;
+            queue_lengths = lengths;
+            queue_head = 0;
+        }
+        if ( queue_chars_used + length > queue_chars.length ) {
+            queue_chars = Arrays.copyOf( queue_chars, Math.max( 2*queue_chars.length, queue_chars_used+length ));
+        }
+        System.arraycopy( buf, start, queue_chars, queue_chars_used, length );
+        int tail = ( queue_head+queue_size ) & ( queue_offsets.length-1 );
+        queue_offsets[tail] = queue_chars_used;
+        queue_lengths[tail] = length;
+        queue_chars_used += length;
+        queue_size++;
+    }
     
 
+    /**
+     *  A reusable view of a run of characters in an array.
+     */
+    static final class CharView implements CharSequence {
+        char[] chars;
+        int start;
+        int length;
+
+        void set( char[] chars, int start, int length ) {
+            this.chars = chars;
+            this.start = start;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public char charAt( int index ) {
+            return chars[start+index];
+        }
+
+        public CharSequence subSequence( int from, int to ) {
+            return new String( chars, start+from, to-from );
+        }
+
+        public String toString() {
+            return new String( chars, start, length );
+        }
+    }
+
+
     /**
      *  Refills the buffer and adds end_of_file "\0" at the appropriate place.
      */
     private void refillBuffer( int start ) throws IOException {
+        if ( reader == null ) {
+            // The whole text is in the buffer already
+            return;
+        }
         int chars_read = reader.read( buf, start, BUFFER_LENGTH-start );
-        if ( chars_read >= 0 && chars_read < BUFFER_LENGTH-start ) {
-            buf[chars_read] = 0;
+        // The end of the text is after the characters kept at the start
+        int end = start + Math.max( chars_read, 0 );
+        if ( end < BUFFER_LENGTH ) {
+            buf[end] = 0;
+        }
+    }
+
+
+    /**
+     *  Closes the reader, if there is one.
+     */
+    public void close() throws IOException {
+        if ( reader != null ) {
+            reader.close();
         }
     }
 
@@ -0,0 +1,180 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Arrays;
+
+
+/**
+ *   Collects the k best scored documents of a query in a bounded min-heap,
+ *   and counts all documents offered to it.
+ *
+ *   The root of the heap is the worst of the k documents kept so far, so a
+ *   new document is compared with it in constant time and only enters the
+ *   heap if it is better. Collecting n hits takes O(n log k) time and O(k)
+ *   memory, instead of sorting all n hits.
+ */
+public class TopK {
+
+    /** The number of documents to keep. */
+    final int k;
+
+    /** The heap of kept documents, ordered so that the worst one is at index 0. */
+    int[] docIDs;
+    double[] scores;
+
+    /** Number of documents in the heap. */
+    int size = 0;
+
+    /** Number of documents offered. */
+    int totalHits = 0;
+
+    /** False if matching documents were skipped without being offered. */
+    boolean totalHitsExact = true;
+
+
+    /** Creates a collector keeping the k best documents. */
+    public TopK( int k ) {
+        this.k = k;
+        int capacity = Math.max( 1, Math.min( k, 16 ));
+        docIDs = new int[capacity];
+        scores = new double[capacity];
+    }
+
+
+    /**
+     *  Returns a collector holding the first n of the given results, with
+     *  the given counts, e.g. to serve results that were collected earlier.
+     */
+    static TopK of( int k, int[] docIDs, double[] scores, int n, int totalHits, boolean totalHitsExact ) {
+        TopK top = new TopK( k );
+        for ( int i=0; i<n; i++ ) {
+            top.offer( docIDs[i], scores[i] );
+        }
+        top.totalHits = totalHits;
+        top.totalHitsExact = totalHitsExact;
+        return top;
+    }
+
+
+    /** Returns the number of documents to keep. */
+    public int k() {
+        return k;
+    }
+
+    /** Returns the number of documents offered, whether they were kept or not. */
+    public int totalHits() {
+        return totalHits;
+    }
+
+    /**
+     *  Returns true if totalHits is the number of matching documents, and
+     *  false if it is a lower bound because some were skipped.
+     */
+    public boolean totalHitsExact() {
+        return totalHitsExact;
+    }
+
+    /** Returns true if k documents are kept, so that new ones must beat the worst of them. */
+    public boolean full() {
+        return size == k;
+    }
+
+    /**
+     *  Returns the score a new document must beat to be kept, or negative
+     *  infinity while fewer than k documents are kept.
+     */
+    public double threshold() {
+        return size == k ? scores[0] : Double.NEGATIVE_INFINITY;
+    }
+
+
+    /**
+     *  Offers a scored document. It is kept if it is among the k best so
+     *  far: higher scores first, and lower docIDs first among equal scores.
+     */
+    public void offer( int docID, double score ) {
+        totalHits++;
+        if ( size < k ) {
+            if ( size == docIDs.length ) {
+                int capacity = (int)Math.min( k, 2L * size );
+                docIDs = Arrays.copyOf( docIDs, capacity );
+                scores = Arrays.copyOf( scores, capacity );
+            }
+            docIDs[size] = docID;
+            scores[size] = score;
+            siftUp( size++ );
+        } else if ( k > 0 && worse( docIDs[0], scores[0], docID, score )) {
+            docIDs[0] = docID;
+            scores[0] = score;
+            siftDown( 0 );
+        }
+    }
+
+
+    /**
+     *  Records that matching documents were skipped because they could not
+     *  be among the k best, so that totalHits is only a lower bound.
+     */
+    public void skip() {
+        totalHitsExact = false;
+    }
+
+
+    /**
+     *  Returns the kept documents as a ranked result, best first.
+     */
+    public PostingsList results() {
+        PostingsList pl = new PostingsList();
+        for ( int i=0; i<size; i++ ) {
+            pl.addEntry( docIDs[i], scores[i] );
+        }
+        pl.sortByScore();
+        return pl;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Returns true if document a ranks below document b. */
+    static boolean worse( int a, double scoreA, int b, double scoreB ) {
+        return scoreA < scoreB || ( scoreA == scoreB && a > b );
+    }
+
+    private void siftUp( int i ) {
+        while ( i > 0 ) {
+            int parent = ( i - 1 ) >> 1;
+            if ( !worse( docIDs[i], scores[i], docIDs[parent], scores[parent] )) {
+                break;
+            }
+            swap( i, parent );
+            i = parent;
+        }
+    }
+
+    private void siftDown( int i ) {
+        while ( true ) {
+            int child = 2 * i + 1;
+            if ( child >= size ) {
+                break;
+            }
+            if ( child + 1 < size && worse( docIDs[child+1], scores[child+1], docIDs[child], scores[child] )) {
+                child++;
+            }
+            if ( !worse( docIDs[child], scores[child], docIDs[i], scores[i] )) {
+                break;
+            }
+            swap( i, child );
+            i = child;
+        }
+    }
+
+    private void swap( int i, int j ) {
+        int t = docIDs[i]; docIDs[i] = docIDs[j]; docIDs[j] = t;
+        double s = scores[i]; scores[i] = scores[j]; scores[j] = s;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+
+/**
+ *   A cursor over the documents that are in any of several cursors.
+ *
+ *   The cursors are kept in a binary heap ordered by docID, so moving to
+ *   the next document only moves the cursors on the current one, and costs
+ *   a logarithmic number of comparisons for each of them. Nothing is read
+ *   ahead, so the union of many long lists takes no more memory than
+ *   their cursors.
+ */
+public class UnionCursor extends PostingsCursor {
+
+    /** The cursors that have not run out, as a heap with the smallest docID first. */
+    final PostingsCursor[] heap;
+
+    /** Number of cursors in the heap. */
+    int n;
+
+    /** The current docID. */
+    int docID = -1;
+
+    /** The sum of the sizes of the cursors, or Integer.MAX_VALUE if it is larger. */
+    final int size;
+
+
+    /** Creates the union of cursors that have not been moved yet. */
+    public UnionCursor( PostingsCursor[] cursors ) {
+        heap = cursors.clone();
+        n = heap.length;
+        long sum = 0;
+        for ( PostingsCursor c : cursors ) {
+            sum += c.size();
+        }
+        size = (int)Math.min( sum, Integer.MAX_VALUE );
+    }
+
+
+    public int docID() {
+        return docID;
+    }
+
+    public int nextDoc() {
+        return docID == NO_MORE_DOCS ? docID : advance( docID + 1 );
+    }
+
+    public int advance( int target ) {
+        if ( docID >= target ) {
+            return docID;
+        }
+        while ( n > 0 && heap[0].docID() < target ) {
+            PostingsCursor c = heap[0];
+            int d = c.docID() == target - 1 ? c.nextDoc() : c.advance( target );
+            if ( d == NO_MORE_DOCS ) {
+                heap[0] = heap[--n];
+                heap[n] = null;
+            }
+            if ( n > 0 ) {
+                siftDown( 0 );
+            }
+        }
+        docID = n == 0 ? NO_MORE_DOCS : heap[0].docID();
+        return docID;
+    }
+
+    /** Returns the sum of the term frequencies of the cursors on the current document. */
+    public int tf() {
+        return tf( 0 );
+    }
+
+    /** Positions are not defined for a union. */
+    public int position( int j ) {
+        throw new UnsupportedOperationException( "A union has no positions" );
+    }
+
+    public int size() {
+        return size;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Sums the term frequencies of the cursors on the current document below heap node i. */
+    private int tf( int i ) {
+        if ( i >= n || heap[i].docID() != docID ) {
+            return 0;
+        }
+        return heap[i].tf() + tf( 2 * i + 1 ) + tf( 2 * i + 2 );
+    }
+
+    private void siftDown( int i ) {
+        PostingsCursor c = heap[i];
+        int d = c.docID();
+        while ( true ) {
+            int child = 2 * i + 1;
+            if ( child >= n ) {
+                break;
+            }
+            if ( child + 1 < n && heap[child + 1].docID() < heap[child].docID() ) {
+                child++;
+            }
+            if ( heap[child].docID() >= d ) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = c;
+    }
+}